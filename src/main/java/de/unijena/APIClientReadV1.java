@@ -3,9 +3,8 @@ package de.unijena;
 import com.sun.mail.pop3.POP3SSLStore;
 
 import javax.mail.*;
-import javax.mail.internet.MimeMultipart;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import javax.mail.internet.ContentType;
+import java.io.*;
 
 public abstract class APIClientReadV1 {
 
@@ -108,6 +107,9 @@ public abstract class APIClientReadV1 {
         properties.setProperty("mail.pop3.host", host);
         properties.setProperty("mail.pop3.port", String.valueOf(portNumber));
 
+        // Cache downloaded messages in temporary files instead of the heap, so that large messages do not fill the memory
+        properties.setProperty("mail.pop3.filecache.enable", "true");
+
         // Set the SSL property if SSL is used
         if (secure) {
             properties.setProperty("mail.pop3.ssl.enable", "true");
@@ -141,80 +143,118 @@ public abstract class APIClientReadV1 {
         // Get the messages in the inbox folder
         Message[] messages = inbox.getMessages();
 
-        // print all messages (Format: "[<index>] Date: <date>, Subject: <subject>")
-        System.out.println("================================================================================");
-        for (int i = 0; i < messages.length; i++) {
-            System.out.println("[" + i + "] Date: " + messages[i].getSentDate() + ", Subject: " + messages[i].getSubject());
-            System.out.println(); // Print a new line
-        }
-        System.out.println("================================================================================");
-        System.out.println("Total amount of messages: " + messages.length);
+        // Everything after the login is printed through the buffered console, which is flushed before waiting for the user
+        PrintWriter out = MailPipeline.console();
+        try {
+            // print all messages (Format: "[<index>] Date: <date>, Subject: <subject>")
+            out.println("================================================================================");
+            for (int i = 0; i < messages.length; i++) {
+                out.println("[" + i + "] Date: " + messages[i].getSentDate() + ", Subject: " + messages[i].getSubject());
+                out.println(); // Print a new line
+            }
+            out.println("================================================================================");
+            out.println("Total amount of messages: " + messages.length);
 
 
-        // Listen for commands from the user
-        while (true) {
-            System.out.println("Enter the number of the message you want to read or close to exit: ");
+            // Listen for commands from the user
+            while (true) {
+                out.println("Enter the number of the message you want to read or close to exit: ");
 
-            // Get the command from the user
-            String command = br.readLine();
+                // Get the command from the user, after showing everything that was printed
+                out.flush();
+                String command = br.readLine();
 
-            if ("close".equals(command)) {// Close the connection to the server
-                System.out.println("================================================================================");
-                break;
-            } else {// if the input is not a number, it is invalid, else it is valid
-                try {
-                    int index = Integer.parseInt(command);
-
-                    // if the index is out of bounds, it is invalid, else it is valid
-                    if (index < 0 || index >= messages.length) {
-                        System.out.println("Invalid index. Please enter a valid index or 'close' to exit: ");
-                        System.out.println("================================================================================");
-                    } else {
-                        String sender = messages[index].getFrom()[0].toString();
-                        if (sender.contains("<")) {
-                            sender = sender.substring(sender.indexOf("<") + 1, sender.indexOf(">"));
-                        }
-                        String receiver = messages[index].getAllRecipients()[0].toString();
-                        if (receiver.contains("<")) {
-                            receiver = receiver.substring(receiver.indexOf("<") + 1, receiver.indexOf(">"));
-                        }
+                if ("close".equals(command)) {// Close the connection to the server
+                    out.println("================================================================================");
+                    break;
+                } else {// if the input is not a number, it is invalid, else it is valid
+                    try {
+                        int index = Integer.parseInt(command);
 
-                        // print the message
-                        System.out.println("================================================================================");
-                        System.out.println("Date: " + messages[index].getSentDate());
-                        System.out.println("Sender: " + sender);
-                        System.out.println("Receiver: " + receiver);
-                        System.out.println("Subject: " + messages[index].getSubject());
-                        System.out.println("======================== Body =============================");
-                        if (messages[index].getContent() instanceof MimeMultipart mimeMultipart) {
-                            for (int i = 0; i < mimeMultipart.getCount(); i++) {
-                                BodyPart bodyPart = mimeMultipart.getBodyPart(i);
-                                System.out.println(bodyPart.getContent());
-                            }
+                        // if the index is out of bounds, it is invalid, else it is valid
+                        if (index < 0 || index >= messages.length) {
+                            out.println("Invalid index. Please enter a valid index or 'close' to exit: ");
+                            out.println("================================================================================");
                         } else {
-                            System.out.println(messages[index].getContent());
+                            String sender = messages[index].getFrom()[0].toString();
+                            if (sender.contains("<")) {
+                                sender = sender.substring(sender.indexOf("<") + 1, sender.indexOf(">"));
+                            }
+                            String receiver = messages[index].getAllRecipients()[0].toString();
+                            if (receiver.contains("<")) {
+                                receiver = receiver.substring(receiver.indexOf("<") + 1, receiver.indexOf(">"));
+                            }
+
+                            // print the message
+                            out.println("================================================================================");
+                            out.println("Date: " + messages[index].getSentDate());
+                            out.println("Sender: " + sender);
+                            out.println("Receiver: " + receiver);
+                            out.println("Subject: " + messages[index].getSubject());
+                            out.println("======================== Body =============================");
+                            out.flush(); // show the headers before the body is downloaded
+                            printPart(messages[index], out);
+                            out.println("================================================================================");
                         }
-                        System.out.println("================================================================================");
+                    } catch (NumberFormatException e) {
+                        out.println("Invalid input!");
+                        out.println("================================================================================");
                     }
-                } catch (NumberFormatException e) {
-                    System.out.println("Invalid input!");
-                    System.out.println("================================================================================");
                 }
             }
-        }
 
-        System.out.println("Closing connection..."); // tell the user that the connection is closing
+            out.println("Closing connection..."); // tell the user that the connection is closing
+            out.flush();
 
-        inbox.close(false); // close the inbox folder without expunging the messages
+            inbox.close(false); // close the inbox folder without expunging the messages
 
-        // Close the BufferedReader
-        br.close();
+            // Close the BufferedReader
+            br.close();
 
-        // Close the connection to the server
-        if (secure) {
-            sslStore.close();
+            // Close the connection to the server
+            if (secure) {
+                sslStore.close();
+            } else {
+                store.close();
+            }
+        } finally {
+            out.flush(); // also show the buffered output if an exception ends the client
+        }
+    }
+
+    /**
+     * Streams a part of a message to the console, without materializing its content<br>
+     * Text parts are decoded by JavaMail and converted from HTML if needed, multiparts are printed part by part
+     * (only the plain text of a multipart/alternative) and everything else is only named
+     * @param part The part, e.g. the message itself
+     * @param out The writer that the text is written to
+     * @throws MessagingException If the structure of the part cannot be read
+     * @throws IOException If the reading of the content fails
+     */
+    private static void printPart(Part part, PrintWriter out) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent(); // only parses the structure, the parts are streamed below
+            boolean alternative = part.isMimeType("multipart/alternative");
+            for (int i = 0; i < multipart.getCount(); i++) {
+                BodyPart bodyPart = multipart.getBodyPart(i);
+                // alternatives contain the same text in different formats, so only the plain text (or the last one) is printed
+                if (alternative && !bodyPart.isMimeType("text/plain") && i < multipart.getCount() - 1) {
+                    continue;
+                }
+                printPart(bodyPart, out);
+                if (alternative) {
+                    break;
+                }
+            }
+        } else if (part.isMimeType("text/*")) {
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            // getInputStream already decodes the transfer encoding, so only the charset is decoded by the pipeline
+            try (InputStream content = part.getInputStream(); OutputStream body = MailPipeline.body(out, "8BIT", charset == null ? "US-ASCII" : charset, part.isMimeType("text/html"))) {
+                content.transferTo(body);
+            }
+            out.println();
         } else {
-            store.close();
+            out.println("[" + part.getContentType().split(";")[0] + (part.getFileName() == null ? "" : ": " + part.getFileName()) + "]");
         }
     }
 }
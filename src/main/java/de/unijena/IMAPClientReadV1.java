@@ -0,0 +1,916 @@
+package de.unijena;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+public abstract class IMAPClientReadV1 {
+
+    /**
+     * Text parts larger than this (in bytes, as reported by BODYSTRUCTURE) are only fetched partially as a preview
+     */
+    private static final int PREVIEW_BYTES = 16 * 1024;
+
+    /**
+     * The size of the buffer that the text of a message is copied from the socket to the console with
+     */
+    private static final int COPY_BUFFER = 8 * 1024;
+
+    /**
+     * Matches a BODY[...] item at the end of a response, whose value follows as a literal, e.g. "BODY[1]<0> "
+     */
+    private static final Pattern BODY_ITEM = Pattern.compile("BODY\\[[^\\]]*\\](<\\d+>)? $", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * IDLE is re-issued after this many milliseconds, as servers may drop clients that idle for 30 minutes (see RFC 2177)
+     */
+    static final long IDLE_RESTART_MILLIS = 28 * 60 * 1000;
+
+    public static void main() throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+
+        // Get the host that the user wants to connect to, default to imap.uni-jena.de
+        System.out.println("[OPTIONAL] Enter the host you want to connect to ('imap.uni-jena.de'): ");
+        String host;
+        while (true) {
+            host = br.readLine();
+
+            // if the input was empty, use the default value
+            if (host.equals("")) {
+                host = "imap.uni-jena.de";
+                break;
+            }
+
+            // if the input contains a space, it is invalid, else it is valid
+            if (host.contains(" ")) {
+                System.out.println("Host cannot contain spaces!");
+            } else {
+                break;
+            }
+        }
+
+        // Check whether the user wants to connect with or without SSL
+        System.out.println("[REQUIRED] Do you want to connect with SSL? (y/n): ");
+        boolean secure = false;
+        while (true) {
+            String secureInput = br.readLine();
+
+            // if the input is not a number, it is invalid, else it is valid
+            if (secureInput.equalsIgnoreCase("y")) {
+                secure = true;
+                break;
+            } else if (secureInput.equalsIgnoreCase("n")) {
+                break;
+            } else {
+                System.out.println("Invalid input. Please enter 'y' or 'n': ");
+            }
+        }
+
+        // Get the port that the user wants to connect to, default to 143 / 993 (depending on whether SSL is used)
+        System.out.println("[OPTIONAL] Enter the port you want to connect to ('" + (secure ? "993" : "143") + "'): ");
+        int portNumber = secure ? 993 : 143;
+        while (true) {
+            String port = br.readLine();
+
+            // if the input was empty, use the default value
+            if (port.equals("")) {
+                break;
+            }
+
+            // if the input is not a number, it is invalid, else it is valid
+            try {
+                portNumber = Integer.parseInt(port);
+                break;
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid port number. Please enter a valid port number or leave the field empty to use the default port (" + (secure ? "993" : "143") + "): ");
+            }
+        }
+
+        // Get the username that the user wants to use
+        System.out.println("[REQUIRED] Enter your username ('max.mustermann'): ");
+        String email;
+        while (true) {
+            email = br.readLine();
+
+            // if the input is empty, it is invalid, else it is valid
+            if (email.equals("")) {
+                System.out.println("No username entered! Please enter your username ('max.mustermann'): ");
+            } else {
+                // if the username already contains @uni-jena.de, remove it
+                email = email.replace("@uni-jena.de", "");
+                break;
+            }
+        }
+        // append the @uni-jena.de to the username, so that it is a valid email address
+        email = email + "@uni-jena.de";
+
+        // Get the password that the user wants to use
+        System.out.println("[REQUIRED] Enter your password ('password'): ");
+        String password;
+        while (true) {
+            password = br.readLine();
+
+            // if the input is empty, it is invalid, else it is valid
+            if (password.equals("")) {
+                System.out.println("No password entered! Please enter your password: ");
+            } else {
+                break;
+            }
+        }
+
+        // Everything after the login is printed through the buffered console, which is flushed before waiting for the user
+        PrintWriter out = MailPipeline.console();
+        try {
+            // Initiate, connect and authenticate the client, then open the inbox read-only
+            Client client = new Client(out);
+            client.connect(host, portNumber, secure);
+            client.authenticate(email, password);
+            client.examine("INBOX");
+            out.println("Connected to " + host + " on port " + portNumber + " as " + email);
+
+            // Print all message indexes, their size, date and subject
+            out.println("================================================================================");
+            client.printMails(1, client.exists);
+            out.println("================================================================================");
+
+            // Tell the user how many messages are in the inbox
+            out.println("Total amount of messages: " + client.exists);
+
+            // Listen for commands from the user
+            while (true) {
+                out.println("Enter the number of the message you want to read, 'full <number>' to download a previewed message completely, idle to wait for new messages or close to exit: ");
+                out.flush(); // show everything that was printed before waiting for the user
+                String command = br.readLine(); // read the command from the user
+
+                // Check the command against known commands
+                try {
+                    if (command.equals("close")) { // if the command is close, close the connection
+                        out.println("================================================================================");
+                        break;
+                    } else if (command.equals("idle")) { // if the command is idle, wait for the server to push new messages
+                        out.println("================================================================================");
+                        out.println("Waiting for new messages, press Enter to stop...");
+                        out.flush();
+                        client.idle(br);
+                        out.println("================================================================================");
+                    } else if (command.startsWith("full ")) { // if the command is full, download the whole text of the message
+                        out.println("================================================================================");
+                        int messageNumber = Integer.parseInt(command.substring(5).trim()); // parse the rest of the command as an integer
+                        client.printMail(messageNumber, true); // print the complete message with the given number
+                        out.println("================================================================================");
+                    } else { // if the command is not close, try to parse it as an integer
+                        out.println("================================================================================");
+                        int messageNumber = Integer.parseInt(command); // parse the command as an integer
+                        client.printMail(messageNumber, false); // print the message with the given number, previewing it if it is large
+                        out.println("================================================================================");
+                    }
+                } catch (NumberFormatException e) { // if the command is not an integer, print an error message
+                    out.println("Invalid input!");
+                    out.println("================================================================================");
+                }
+            }
+
+            out.println("Closing connection..."); // tell the user that the connection is closing
+            out.flush();
+            client.close(); // close the connection
+        } finally {
+            out.flush(); // also show the buffered output if an exception ends the client
+        }
+    }
+
+    static class Client {
+        /**
+         * The socket that is used to connect to the server (an SSLSocket if SSL is used)
+         */
+        Socket socket;
+
+        /**
+         * The input stream that is used to read the responses from the server<br>
+         * IMAP literals are counted in bytes, so the responses are read byte wise instead of through a Reader
+         */
+        InputStream input;
+
+        /**
+         * The print writer that is used to write to the server
+         */
+        PrintWriter writer;
+
+        /**
+         * The writer that the listing and the messages are printed through, the buffered console in the interactive client
+         */
+        PrintWriter out;
+
+        /**
+         * The capabilities that the server announced, in upper case
+         */
+        Set<String> capabilities = new HashSet<>();
+
+        /**
+         * The amount of messages in the selected mailbox, as announced by the last EXISTS response
+         */
+        volatile int exists;
+
+        /**
+         * The number of the last tag that was used for a command
+         */
+        int tagCounter;
+
+        /**
+         * The milliseconds after which a running IDLE is ended and issued again
+         */
+        long idleRestartMillis = IDLE_RESTART_MILLIS;
+
+        /**
+         * The constructor of the client
+         * @param out The writer that the listing and the messages are printed through
+         */
+        public Client(PrintWriter out) {
+            this.out = out;
+        }
+
+        /**
+         * Connects to the server and reads its capabilities
+         * @param host The host that the client should connect to
+         * @param port The port that the client should connect to
+         * @param secure Whether to use SSL or not
+         * @throws IOException If the connection fails
+         */
+        public void connect(String host, int port, boolean secure) throws IOException {
+            if (secure) {
+                socket = SSLSocketFactory.getDefault().createSocket(host, port);
+            } else {
+                socket = new Socket(host, port);
+            }
+            socket.setKeepAlive(true);
+            input = new BufferedInputStream(socket.getInputStream());
+            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1), true);
+
+            String greeting = readResponse(); // Read the greeting (Returns: * OK <text>)
+            if (!greeting.startsWith("* OK")) {
+                throw new IOException("Connection refused: " + greeting);
+            }
+
+            for (List<Object> response : command("CAPABILITY")) { // Get the capabilities (Returns: * CAPABILITY IMAP4rev1 IDLE ...)
+                if ("CAPABILITY".equalsIgnoreCase(atom(response, 1))) {
+                    for (int i = 2; i < response.size(); i++) {
+                        capabilities.add(String.valueOf(response.get(i)).toUpperCase());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Authenticates the client
+         * @param email The email address of the user
+         * @param password The password of the user
+         * @throws IOException If the authentication fails
+         */
+        public void authenticate(String email, String password) throws IOException {
+            try {
+                command("LOGIN " + quote(email) + " " + quote(password));
+            } catch (IOException e) {
+                throw new IOException("Authentication failed!", e);
+            }
+        }
+
+        /**
+         * Opens the given mailbox read-only, so that no flags are changed by reading messages
+         * @param mailbox The name of the mailbox, e.g. INBOX
+         * @throws IOException If the mailbox cannot be opened
+         */
+        public void examine(String mailbox) throws IOException {
+            command("EXAMINE " + quote(mailbox)); // Updates exists through the EXISTS response
+        }
+
+        /**
+         * Prints the size, date and subject of all messages in the given range, using only their envelope
+         * @param from The number of the first message
+         * @param to The number of the last message
+         * @throws IOException If the fetching of the envelopes fails
+         */
+        public void printMails(int from, int to) throws IOException {
+            if (from > to) { // Nothing to fetch, an empty sequence set would be rejected by the server
+                return;
+            }
+
+            // Get the envelope and size of all messages at once (Returns: * <number> FETCH (ENVELOPE (...) RFC822.SIZE <size>) per message)
+            // Every message is printed as soon as its response arrives, so large mailboxes are neither held in memory nor waited for
+            out.println(); // Print a new line
+            command("FETCH " + from + ":" + to + " (ENVELOPE RFC822.SIZE)", -1, null, response -> {
+                int number = fetchNumber(response);
+                if (number < from || number > to) { // Not a FETCH response, or an unsolicited one for another message
+                    return;
+                }
+
+                Map<String, Object> attributes = attributes(response);
+                if (!attributes.containsKey("ENVELOPE") || !attributes.containsKey("RFC822.SIZE")) { // e.g. an unsolicited FLAGS update
+                    return;
+                }
+                List<Object> envelope = list(attributes.get("ENVELOPE"));
+                long size = Long.parseLong(String.valueOf(attributes.get("RFC822.SIZE")));
+
+                out.print("[" + atom(response, 1) + "] (" + SocketClientReadV1.formatSize(size) + ") "); // Print the message number and size
+                out.print("Date: " + shortDate(atom(envelope, 0)) + ", "); // Print the date
+                out.println("Subject: " + SocketClientReadV1.anyDecode(Objects.toString(envelope.get(1), ""))); // Print the subject
+                out.println(); // Print a new line
+                out.flush(); // Show the message while the next ones are still arriving
+            });
+        }
+
+        /**
+         * Prints the message with the given number<br>
+         * Only the text part of the message is downloaded, attachments are never fetched.
+         * Text parts larger than {@link #PREVIEW_BYTES} are only fetched partially, unless full is set
+         * @param messageNumber The number of the message that should be printed
+         * @param full Whether to download the whole text part regardless of its size
+         * @throws IOException If the reading of the message fails
+         */
+        public void printMail(int messageNumber, boolean full) throws IOException {
+            if (messageNumber < 1 || messageNumber > exists) { // The server would only answer with BAD
+                out.println("Message not found!");
+                return;
+            }
+
+            // Get the envelope, size and MIME structure without downloading any content
+            Map<String, Object> attributes = null;
+            for (List<Object> response : command("FETCH " + messageNumber + " (ENVELOPE RFC822.SIZE BODYSTRUCTURE)")) {
+                // Ignore unsolicited FETCH responses, e.g. FLAGS updates of this or other messages
+                if (fetchNumber(response) == messageNumber && attributes(response).containsKey("ENVELOPE")) {
+                    attributes = attributes(response);
+                }
+            }
+            if (attributes == null) {
+                out.println("Message not found!");
+                return;
+            }
+
+            // envelope is of format: (date subject from sender reply-to to cc bcc in-reply-to message-id)
+            List<Object> envelope = list(attributes.get("ENVELOPE"));
+            long size = Long.parseLong(String.valueOf(attributes.get("RFC822.SIZE")));
+
+            out.println("Date: " + shortDate(atom(envelope, 0)));
+            out.println("Sender: " + address(envelope.get(2)));
+            out.println("Receiver: " + address(envelope.get(5)));
+            out.println("Subject: " + SocketClientReadV1.anyDecode(Objects.toString(envelope.get(1), "")));
+            out.println("Size: " + SocketClientReadV1.formatSize(size));
+            out.println("======================== Body =============================");
+            out.flush(); // Show the headers before the body is downloaded
+
+            // Find the part that holds the text of the message, preferring text/plain over text/html
+            List<TextPart> parts = new ArrayList<>();
+            findTextParts(list(attributes.get("BODYSTRUCTURE")), "", parts);
+            TextPart part = null;
+            for (TextPart candidate : parts) {
+                if (candidate.subtype.equalsIgnoreCase("plain")) {
+                    part = candidate;
+                    break;
+                } else if (part == null) {
+                    part = candidate;
+                }
+            }
+            if (part == null) {
+                out.println("[The message does not contain a text part]");
+                return;
+            }
+
+            // Get only the text part, and only the beginning if it is large (Returns: * <number> FETCH (BODY[<section>]<0> {<length>} <content>))
+            // The content is streamed from the socket through the decoding stages to the console while it arrives
+            boolean preview = !full && part.size > PREVIEW_BYTES;
+            String range = preview ? "<0." + PREVIEW_BYTES + ">" : "";
+            try (OutputStream body = MailPipeline.body(out, part.encoding, part.charset, part.subtype.equalsIgnoreCase("html"))) {
+                for (List<Object> response : command("FETCH " + messageNumber + " (BODY.PEEK[" + part.section + "]" + range + ")", messageNumber, body)) {
+                    if (fetchNumber(response) != messageNumber) {
+                        continue;
+                    }
+                    for (Map.Entry<String, Object> attribute : attributes(response).entrySet()) {
+                        if (attribute.getKey().startsWith("BODY[") && attribute.getValue() != null) { // Short texts may be sent as a quoted string instead of a literal
+                            body.write(attribute.getValue().toString().getBytes(StandardCharsets.ISO_8859_1));
+                        }
+                    }
+                }
+            }
+            out.println();
+
+            if (preview) { // Tell the user how to get the rest of the message
+                out.println("[Preview of the first " + SocketClientReadV1.formatSize(PREVIEW_BYTES) + " of the text, enter 'full " + messageNumber + "' to download the whole text (" + SocketClientReadV1.formatSize(part.size) + ")]");
+            }
+        }
+
+        /**
+         * Waits for the server to push new messages until the user presses Enter, then prints the new messages<br>
+         * The responses are read on a separate thread, so that new messages and a lost connection are announced while waiting for the user.
+         * IDLE is ended and issued again every {@link #idleRestartMillis}, so that the server does not drop the client
+         * @param br The reader of the user input
+         * @throws IOException If the server does not accept IDLE or the connection fails
+         */
+        public void idle(BufferedReader br) throws IOException {
+            if (!capabilities.contains("IDLE")) {
+                out.println("The server does not support IDLE!");
+                return;
+            }
+
+            Idle idle = new Idle();
+            Timer restarts = new Timer("IDLE restart", true);
+            IOException[] failure = new IOException[1];
+
+            // Issue IDLE and read the pushed responses, until the user presses Enter
+            Thread listener = new Thread(() -> {
+                try {
+                    while (true) {
+                        String tag = idle.start();
+                        if (tag == null) { // The user pressed Enter before IDLE was issued again
+                            break;
+                        }
+                        restarts.schedule(new TimerTask() {
+                            @Override
+                            public void run() {
+                                idle.done(false);
+                            }
+                        }, idleRestartMillis);
+
+                        while (true) {
+                            String response = readResponse();
+                            if (response.startsWith(tag + " ")) { // The tagged response ends the IDLE command
+                                if (!response.startsWith(tag + " OK")) {
+                                    throw new IOException("IDLE failed: " + response);
+                                }
+                                break;
+                            }
+
+                            idle.untagged(response);
+                        }
+
+                        if (idle.stopped) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                    out.println("[IDLE] Connection lost: " + e.getMessage() + ", press Enter to continue");
+                    out.flush(); // Tell the user right away, not only after Enter was pressed
+                }
+            });
+            listener.start();
+
+            br.readLine(); // Wait for the user to press Enter
+            idle.done(true);
+            try {
+                listener.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the end of IDLE", e);
+            } finally {
+                restarts.cancel();
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+
+            if (exists > idle.known) { // Print the messages that arrived while idling
+                printMails(idle.known + 1, exists);
+            } else {
+                out.println("No new messages.");
+            }
+        }
+
+        /**
+         * The state of a running IDLE, shared between the listener, the restart timer and the user<br>
+         * Issuing IDLE and sending DONE are synchronized, so that DONE is sent exactly once for every IDLE
+         */
+        class Idle {
+            /**
+             * Whether the server confirmed the current IDLE and DONE has not been sent yet
+             */
+            boolean idling;
+
+            /**
+             * Whether the user pressed Enter, so IDLE is not issued again
+             */
+            volatile boolean stopped;
+
+            /**
+             * The amount of messages that the user already knows, lowered by EXPUNGE
+             */
+            int known = exists;
+
+            /**
+             * Issues IDLE and waits for the confirmation of the server
+             * @return The tag of the IDLE command, or null if the user already stopped idling
+             * @throws IOException If the server does not accept IDLE
+             */
+            String start() throws IOException {
+                String tag;
+                synchronized (this) {
+                    if (stopped) {
+                        return null;
+                    }
+                    tag = nextTag();
+                    writer.print(tag + " IDLE\r\n"); // Start idling (Returns: + idling, then untagged responses until DONE is sent)
+                    writer.flush();
+                }
+
+                while (true) { // Untagged responses may arrive before the confirmation, e.g. pending EXISTS
+                    String response = readResponse();
+                    if (response.startsWith("+")) {
+                        break;
+                    }
+                    if (response.startsWith(tag + " ")) { // The server rejected IDLE
+                        throw new IOException("IDLE failed: " + response);
+                    }
+                    untagged(response);
+                }
+
+                synchronized (this) {
+                    idling = true;
+                    if (stopped) { // The user pressed Enter while waiting for the confirmation
+                        done(true);
+                    }
+                }
+                return tag;
+            }
+
+            /**
+             * Handles an untagged response that was pushed while idling and tells the user about new messages
+             * @param response The response, e.g. "* 5 EXISTS"
+             */
+            void untagged(String response) {
+                List<Object> parsed = parse(response);
+                int previous = exists;
+                handleUntagged(parsed);
+                if ("EXPUNGE".equalsIgnoreCase(atom(parsed, 2)) && Integer.parseInt(atom(parsed, 1)) <= known) {
+                    known--; // A message that the user knows was removed
+                }
+                if (exists > previous) { // Tell the user that new messages have arrived
+                    out.println("[IDLE] " + (exists - known) + " new message(s) arrived, press Enter to show them");
+                    out.flush(); // The user is waiting, show it right away
+                }
+            }
+
+            /**
+             * Ends the current IDLE, if the server confirmed it and it was not ended yet
+             * @param stop Whether the user stopped idling, false if IDLE is only restarted
+             */
+            synchronized void done(boolean stop) {
+                if (stop) {
+                    stopped = true;
+                }
+                if (idling) {
+                    writer.print("DONE\r\n"); // Stop idling (Returns: the tagged OK of the IDLE command)
+                    writer.flush();
+                    idling = false;
+                }
+            }
+        }
+
+        /**
+         * Closes the connection to the server
+         * @throws IOException If the closing of the connection fails
+         */
+        public void close() throws IOException {
+            command("LOGOUT"); // Close the connection (Returns: * BYE, then the tagged OK)
+            socket.close(); // Close the socket
+        }
+
+        /**
+         * Sends a tagged command and reads all responses until its tagged completion
+         * @param command The command without a tag
+         * @return All untagged responses, parsed by {@link #parse(String)}
+         * @throws IOException If the server answers with NO or BAD, or the connection fails
+         */
+        List<List<Object>> command(String command) throws IOException {
+            return command(command, -1, null);
+        }
+
+        /**
+         * Sends a tagged command and reads all responses until its tagged completion,
+         * streaming the BODY[...] literals of the given message to a stream instead of reading them into memory
+         * @param command The command without a tag
+         * @param messageNumber The number of the message whose BODY[...] literals are streamed
+         * @param body The stream that the literals are written to, null to read all literals into the responses
+         * @return All untagged responses, parsed by {@link #parse(String)}, with streamed literals replaced by NIL
+         * @throws IOException If the server answers with NO or BAD, or the connection fails
+         */
+        List<List<Object>> command(String command, int messageNumber, OutputStream body) throws IOException {
+            List<List<Object>> responses = new ArrayList<>();
+            command(command, messageNumber, body, responses::add);
+            return responses;
+        }
+
+        /**
+         * Sends a tagged command and passes every untagged response to a handler as soon as it has been read,
+         * streaming the BODY[...] literals of the given message to a stream instead of reading them into memory
+         * @param command The command without a tag
+         * @param messageNumber The number of the message whose BODY[...] literals are streamed
+         * @param body The stream that the literals are written to, null to read all literals into the responses
+         * @param handler The handler of the untagged responses, parsed by {@link #parse(String)}, with streamed literals replaced by NIL
+         * @throws IOException If the server answers with NO or BAD, or the connection fails
+         */
+        void command(String command, int messageNumber, OutputStream body, Consumer<List<Object>> handler) throws IOException {
+            String tag = nextTag();
+            writer.print(tag + " " + command + "\r\n");
+            writer.flush();
+
+            while (true) {
+                String response = readResponse(body == null ? null : "* " + messageNumber + " FETCH ", body);
+                if (response.startsWith(tag + " ")) { // The tagged response ends the command
+                    if (!response.startsWith(tag + " OK")) {
+                        throw new IOException("Command failed: " + response);
+                    }
+                    return;
+                }
+
+                List<Object> parsed = parse(response);
+                handleUntagged(parsed);
+                handler.accept(parsed);
+            }
+        }
+
+        /**
+         * Updates the state of the client from an untagged response, e.g. "* 5 EXISTS"
+         * @param response The parsed response
+         */
+        void handleUntagged(List<Object> response) {
+            if ("EXISTS".equalsIgnoreCase(atom(response, 2))) {
+                exists = Integer.parseInt(atom(response, 1));
+            } else if ("EXPUNGE".equalsIgnoreCase(atom(response, 2))) { // e.g. "* 3 EXPUNGE", the following messages move down by one
+                exists--;
+            }
+        }
+
+        /**
+         * Gets the next unique tag for a command
+         * @return The tag, e.g. "A1"
+         */
+        String nextTag() {
+            return "A" + (++tagCounter);
+        }
+
+        /**
+         * Reads a complete response from the server<br>
+         * Literals ("{length}" followed by length bytes) are read completely and inlined as quoted strings,
+         * so that the response can be parsed from a single String
+         * @return The response without the trailing CRLF
+         * @throws IOException If the connection is closed
+         */
+        String readResponse() throws IOException {
+            return readResponse(null, null);
+        }
+
+        /**
+         * Reads a complete response from the server, like {@link #readResponse()}, but the literals of BODY[...] items
+         * in a response that starts with the given prefix are copied to a stream in small pieces and replaced by NIL
+         * @param prefix The start of the responses whose BODY[...] literals are streamed, e.g. "* 3 FETCH ", null to stream none
+         * @param body The stream that the literals are written to
+         * @return The response without the trailing CRLF
+         * @throws IOException If the connection is closed or the writing fails
+         */
+        String readResponse(String prefix, OutputStream body) throws IOException {
+            StringBuilder response = new StringBuilder();
+            while (true) {
+                String line = readLine();
+                if (line.endsWith("}") && line.lastIndexOf('{') != -1) { // The line announces a literal
+                    int start = line.lastIndexOf('{');
+                    int length = Integer.parseInt(line.substring(start + 1, line.length() - 1));
+                    response.append(line, 0, start);
+
+                    if (prefix != null && response.toString().toUpperCase().startsWith(prefix) && BODY_ITEM.matcher(response).find()) {
+                        byte[] buffer = new byte[COPY_BUFFER];
+                        while (length > 0) { // Copy the literal piece by piece, so it is never held in memory completely
+                            int read = input.read(buffer, 0, Math.min(buffer.length, length));
+                            if (read == -1) {
+                                throw new EOFException("Connection closed while reading a literal");
+                            }
+                            body.write(buffer, 0, read);
+                            body.flush(); // Show the text while the rest is still arriving
+                            length -= read;
+                        }
+                        response.append("NIL");
+                        continue;
+                    }
+
+                    byte[] literal = input.readNBytes(length);
+                    if (literal.length < length) {
+                        throw new EOFException("Connection closed while reading a literal");
+                    }
+                    response.append(quote(new String(literal, StandardCharsets.ISO_8859_1)));
+                } else {
+                    return response.append(line).toString();
+                }
+            }
+        }
+
+        /**
+         * Reads a single line from the server
+         * @return The line without the trailing CRLF
+         * @throws IOException If the connection is closed
+         */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int read;
+            while ((read = input.read()) != '\n') {
+                if (read == -1) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                if (read != '\r') {
+                    line.write(read);
+                }
+            }
+            return line.toString(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * A part of a message that contains text, as described by BODYSTRUCTURE
+     * @param section The section specifier of the part, e.g. "1.2"
+     * @param subtype The subtype of the part, e.g. "plain" or "html"
+     * @param charset The charset of the part
+     * @param encoding The content transfer encoding of the part
+     * @param size The size of the encoded part in bytes
+     */
+    private record TextPart(String section, String subtype, String charset, String encoding, long size) {}
+
+    /**
+     * Collects all text parts of a BODYSTRUCTURE in the order they appear in the message<br>
+     * A multipart is of format: ((part) (part) ... subtype ...), a single part is of format: (type subtype (params) id description encoding size ...)
+     * @param structure The body structure
+     * @param section The section specifier of the structure, empty for the whole message
+     * @param parts The list that the text parts are added to
+     */
+    private static void findTextParts(List<Object> structure, String section, List<TextPart> parts) {
+        if (structure.isEmpty()) {
+            return;
+        }
+
+        if (structure.get(0) instanceof List) { // If the structure is a multipart, walk through its children
+            for (int i = 0; i < structure.size() && structure.get(i) instanceof List; i++) {
+                findTextParts(list(structure.get(i)), section.isEmpty() ? String.valueOf(i + 1) : section + "." + (i + 1), parts);
+            }
+            return;
+        }
+
+        if (!"text".equalsIgnoreCase(atom(structure, 0))) { // Attachments, images etc. are skipped
+            return;
+        }
+
+        String charset = "US-ASCII";
+        List<Object> params = list(structure.get(2));
+        for (int i = 0; i + 1 < params.size(); i += 2) {
+            if ("charset".equalsIgnoreCase(String.valueOf(params.get(i)))) {
+                charset = String.valueOf(params.get(i + 1));
+            }
+        }
+
+        parts.add(new TextPart(section.isEmpty() ? "1" : section, atom(structure, 1), charset, Objects.toString(structure.get(5), "7BIT"), Long.parseLong(atom(structure, 6))));
+    }
+
+    /**
+     * Parses a response into its tokens: atoms and strings become Strings, NIL becomes null and parenthesized lists become Lists<br>
+     * E.g. "* 1 FETCH (RFC822.SIZE 42 ENVELOPE (NIL "Subject" ...))" becomes ["*", "1", "FETCH", ["RFC822.SIZE", "42", "ENVELOPE", [null, "Subject", ...]]]
+     * @param response The response with all literals inlined
+     * @return The tokens of the response
+     */
+    static List<Object> parse(String response) {
+        int[] position = {0};
+        return parseList(response, position);
+    }
+
+    /**
+     * Parses tokens until the end of the current list or the end of the response
+     * @param response The response
+     * @param position The current position in the response, updated while parsing
+     * @return The tokens of the list
+     */
+    private static List<Object> parseList(String response, int[] position) {
+        List<Object> tokens = new ArrayList<>();
+        while (position[0] < response.length()) {
+            char c = response.charAt(position[0]);
+            if (c == ' ') {
+                position[0]++;
+            } else if (c == ')') { // End of the current list
+                position[0]++;
+                break;
+            } else if (c == '(') { // Start of a nested list
+                position[0]++;
+                tokens.add(parseList(response, position));
+            } else if (c == '"') { // Quoted string, with \" and \\ as escapes
+                StringBuilder string = new StringBuilder();
+                position[0]++;
+                while (position[0] < response.length() && response.charAt(position[0]) != '"') {
+                    if (response.charAt(position[0]) == '\\') {
+                        position[0]++;
+                    }
+                    if (position[0] < response.length()) {
+                        string.append(response.charAt(position[0]++));
+                    }
+                }
+                position[0]++;
+                tokens.add(string.toString());
+            } else { // Atom, e.g. FETCH, 42 or BODY[1]<0>
+                int start = position[0];
+                while (position[0] < response.length() && " ()".indexOf(response.charAt(position[0])) == -1) {
+                    position[0]++;
+                }
+                String atom = response.substring(start, position[0]);
+                tokens.add(atom.equalsIgnoreCase("NIL") ? null : atom);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Gets the attributes of a FETCH response as a map, e.g. {"RFC822.SIZE": "42", "ENVELOPE": [...]}
+     * @param response The parsed FETCH response (* number FETCH (attributes))
+     * @return The attributes by their upper case name
+     */
+    private static Map<String, Object> attributes(List<Object> response) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        List<Object> items = list(response.get(response.size() - 1));
+        for (int i = 0; i + 1 < items.size(); i += 2) {
+            attributes.put(String.valueOf(items.get(i)).toUpperCase(), items.get(i + 1));
+        }
+        return attributes;
+    }
+
+    /**
+     * Gets the message number of a FETCH response
+     * @param response The parsed response (* number FETCH (attributes))
+     * @return The message number, or -1 if the response is not a FETCH response
+     */
+    private static int fetchNumber(List<Object> response) {
+        if (!"FETCH".equalsIgnoreCase(atom(response, 2))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(atom(response, 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the token at the given index as a String
+     * @param tokens The tokens
+     * @param index The index of the token
+     * @return The token, or null if it does not exist or is not a String
+     */
+    private static String atom(List<Object> tokens, int index) {
+        if (index < tokens.size() && tokens.get(index) instanceof String string) {
+            return string;
+        }
+        return null;
+    }
+
+    /**
+     * Casts a token to a list, treating NIL and atoms as an empty list
+     * @param token The token
+     * @return The token as a list
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(Object token) {
+        if (token instanceof List) {
+            return (List<Object>) token;
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Formats the first address of an address list of an envelope<br>
+     * An address is of format: (name adl mailbox host)
+     * @param addresses The address list
+     * @return The address, e.g. "max.mustermann@uni-jena.de", or an empty String if there is none
+     */
+    private static String address(Object addresses) {
+        List<Object> list = list(addresses);
+        if (list.isEmpty()) {
+            return "";
+        }
+        List<Object> address = list(list.get(0));
+        return atom(address, 2) + "@" + atom(address, 3);
+    }
+
+    /**
+     * Shortens a date of format "Wed, 21 Oct 2015 12:34:56 +0200 (CEST)" to its first 5 parts
+     * @param date The date, may be null
+     * @return The shortened date, e.g. "Wed, 21 Oct 2015 12:34:56"
+     */
+    private static String shortDate(String date) {
+        if (date == null) {
+            return "";
+        }
+        String[] dateParts = date.split(" "); // split the date into parts
+        return String.join(" ", Arrays.copyOf(dateParts, Math.min(5, dateParts.length))); // get the first 5 parts of the date
+    }
+
+    /**
+     * Quotes a String for use in a command, escaping backslashes and double quotes
+     * @param string The String
+     * @return The quoted String
+     */
+    private static String quote(String string) {
+        return "\"" + string.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,519 @@
+package de.unijena;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * The output pipeline that message bodies are printed through: <br>
+ * encoded bytes -> transfer decoding (base64, quoted-printable) -> charset decoding -> HTML to text (optional) -> buffered console<br>
+ * Every stage only keeps a small fixed buffer, so the memory needed to print a message does not depend on its size.
+ * The stages are synchronous, so a full console buffer blocks the writer, which stops reading from the socket (backpressure).
+ */
+public abstract class MailPipeline {
+
+    /**
+     * The size of the console buffer in chars
+     */
+    static final int CONSOLE_BUFFER = 64 * 1024;
+
+    /**
+     * The size of the buffers between the stages in bytes / chars
+     */
+    private static final int STAGE_BUFFER = 8 * 1024;
+
+    /**
+     * The shared console writer, created on first use
+     */
+    private static PrintWriter console;
+
+    /**
+     * Gets the buffered writer that all clients print their listings and messages through<br>
+     * It has to be flushed before waiting for user input, so that everything that was printed is visible
+     * @return The console writer
+     */
+    static synchronized PrintWriter console() {
+        if (console == null) {
+            console = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset()), CONSOLE_BUFFER), false);
+        }
+        return console;
+    }
+
+    /**
+     * Creates the stream that the encoded bytes of a body are written to<br>
+     * Closing the stream flushes all stages, but does not close the given writer
+     * @param out The writer that the decoded text is written to
+     * @param encoding The content transfer encoding (7BIT, 8BIT, BINARY, QUOTED-PRINTABLE, BASE64)
+     * @param charset The charset of the decoded bytes, ISO-8859-1 is used if it is not supported
+     * @param html Whether the text is HTML and should be converted to plain text
+     * @return The stream to write the encoded bytes to
+     * @throws IOException If the warning about an unsupported charset cannot be written
+     */
+    static OutputStream body(Writer out, String encoding, String charset, boolean html) throws IOException {
+        Charset decodedCharset;
+        try {
+            decodedCharset = Charset.forName(charset);
+        } catch (IllegalArgumentException e) {
+            out.write("Unsupported encoding: " + charset + "\n");
+            decodedCharset = StandardCharsets.ISO_8859_1;
+        }
+
+        Writer text = html ? new HtmlToTextWriter(out) : new FlushOnCloseWriter(out);
+        return new TransferDecodingOutputStream(new CharsetDecodingOutputStream(text, decodedCharset), encoding);
+    }
+
+    /**
+     * Decodes a content transfer encoding while the encoded bytes are written<br>
+     * Incomplete sequences at the end of one write are kept until the next write, so the bytes may be split anywhere
+     */
+    private static class TransferDecodingOutputStream extends FilterOutputStream {
+        /**
+         * Whether the bytes are base64 encoded
+         */
+        boolean base64;
+
+        /**
+         * Whether the bytes are quoted-printable encoded
+         */
+        boolean quotedPrintable;
+
+        /**
+         * The base64 chars of the current group of 4
+         */
+        byte[] group = new byte[4];
+
+        /**
+         * The amount of chars in the current base64 group
+         */
+        int groupLength;
+
+        /**
+         * The chars after a "=" that have not been decoded yet (quoted-printable)
+         */
+        StringBuilder escape = new StringBuilder(2);
+
+        /**
+         * The constructor of the stream
+         * @param out The stream that the decoded bytes are written to
+         * @param encoding The content transfer encoding
+         */
+        TransferDecodingOutputStream(OutputStream out, String encoding) {
+            super(out);
+            base64 = encoding.equalsIgnoreCase("BASE64");
+            quotedPrintable = encoding.equalsIgnoreCase("QUOTED-PRINTABLE");
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (base64) {
+                // skip line breaks and everything else that is not part of the alphabet
+                if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '+' || b == '/' || b == '=') {
+                    group[groupLength++] = (byte) b;
+                    if (groupLength == 4) { // A complete group of 4 chars is decoded into up to 3 bytes
+                        try {
+                            out.write(Base64.getDecoder().decode(group));
+                        } catch (IllegalArgumentException ignored) {} // skip invalid groups, e.g. padding in the wrong place
+                        groupLength = 0;
+                    }
+                }
+            } else if (quotedPrintable) {
+                if (escape.length() == 0 && b != '=') { // Plain char
+                    out.write(b);
+                    return;
+                }
+                if (b == '=' && escape.length() == 0) { // Start of an escape
+                    escape.append('=');
+                    return;
+                }
+
+                escape.append((char) b);
+                String sequence = escape.toString();
+                if (sequence.equals("=\r")) { // Soft line break, wait for the \n
+                    return;
+                }
+                if (sequence.equals("=\n") || sequence.equals("=\r\n")) { // Soft line break
+                    escape.setLength(0);
+                } else if (sequence.length() == 3) { // Encoded byte, e.g. "=FC"
+                    int high = Character.digit(sequence.charAt(1), 16);
+                    int low = Character.digit(sequence.charAt(2), 16);
+                    if (high != -1 && low != -1) {
+                        out.write(high << 4 | low);
+                    } else { // Not an escape, print it as it is
+                        out.write(sequence.getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                    escape.setLength(0);
+                } else if (sequence.startsWith("=\r")) { // "=\r" not followed by "\n"
+                    out.write(sequence.getBytes(StandardCharsets.ISO_8859_1));
+                    escape.setLength(0);
+                }
+            } else {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!base64 && !quotedPrintable) {
+                out.write(b, off, len);
+                return;
+            }
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (quotedPrintable && escape.length() > 0) { // A dangling escape at the end is printed as it is
+                out.write(escape.toString().getBytes(StandardCharsets.ISO_8859_1));
+            }
+            // an incomplete base64 group at the end (e.g. of a partial fetch) is dropped
+            out.close();
+        }
+    }
+
+    /**
+     * Decodes bytes into chars of a charset while they are written<br>
+     * Multi byte chars that are split between two writes are kept until the next write
+     */
+    private static class CharsetDecodingOutputStream extends OutputStream {
+        /**
+         * The writer that the chars are written to
+         */
+        Writer out;
+
+        /**
+         * The decoder of the charset, malformed input is replaced
+         */
+        CharsetDecoder decoder;
+
+        /**
+         * The bytes that have not been decoded yet
+         */
+        ByteBuffer bytes = ByteBuffer.allocate(STAGE_BUFFER);
+
+        /**
+         * The chars that have been decoded but not written yet
+         */
+        CharBuffer chars = CharBuffer.allocate(STAGE_BUFFER);
+
+        /**
+         * The constructor of the stream
+         * @param out The writer that the chars are written to
+         * @param charset The charset of the bytes
+         */
+        CharsetDecodingOutputStream(Writer out, Charset charset) {
+            this.out = out;
+            this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            bytes.put((byte) b);
+            if (!bytes.hasRemaining()) {
+                decode(false);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int amount = Math.min(len, bytes.remaining());
+                bytes.put(b, off, amount);
+                off += amount;
+                len -= amount;
+                if (!bytes.hasRemaining()) {
+                    decode(false);
+                }
+            }
+        }
+
+        /**
+         * Decodes all complete chars in the byte buffer and writes them
+         * @param endOfInput Whether no more bytes follow
+         * @throws IOException If the writing fails
+         */
+        void decode(boolean endOfInput) throws IOException {
+            bytes.flip();
+            while (true) {
+                CoderResult result = decoder.decode(bytes, chars, endOfInput);
+                chars.flip();
+                out.write(chars.array(), chars.position(), chars.remaining());
+                chars.clear();
+                if (!result.isOverflow()) { // All bytes were decoded, except an incomplete char at the end
+                    break;
+                }
+            }
+            bytes.compact();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            decode(false);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            decode(true);
+            decoder.flush(chars);
+            chars.flip();
+            out.write(chars.array(), chars.position(), chars.remaining());
+            chars.clear();
+            out.close();
+        }
+    }
+
+    /**
+     * Passes all chars through, but only flushes instead of closing the underlying writer
+     */
+    private static class FlushOnCloseWriter extends FilterWriter {
+        /**
+         * The constructor of the writer
+         * @param out The writer that the chars are written to
+         */
+        FlushOnCloseWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Converts HTML into plain text while it is written<br>
+     * Tags are removed, block tags (p, div, br, li, ...) become line breaks, comments (including conditional comments)
+     * and the content of script and style are skipped,
+     * whitespace is collapsed and the common entities are decoded. Only the current tag or entity is buffered.
+     * Closing the writer flushes it, but does not close the underlying writer
+     */
+    private static class HtmlToTextWriter extends FilterWriter {
+        /**
+         * Tags that are separated from the surrounding text by an empty line
+         */
+        private static final Set<String> PARAGRAPH_TAGS = Set.of("p", "table", "ul", "ol", "blockquote", "h1", "h2", "h3", "h4", "h5", "h6", "title", "pre");
+
+        /**
+         * Tags that start a new line
+         */
+        private static final Set<String> LINE_TAGS = Set.of("div", "li", "tr", "hr");
+
+        /**
+         * The maximum amount of chars of a tag or entity that are kept, the rest is ignored
+         */
+        private static final int MAX_TOKEN = 32;
+
+        /**
+         * The chars of the current tag, null if not inside a tag
+         */
+        StringBuilder tag;
+
+        /**
+         * The quote char of the attribute value that the current tag is inside of, 0 if none, so that a ">" in it does not end the tag
+         */
+        char quote;
+
+        /**
+         * Whether the current position is inside a comment ("<!-- ... -->")
+         */
+        boolean comment;
+
+        /**
+         * The amount of "-" that were found in a row inside a comment, a following ">" ends the comment if there were at least two
+         */
+        int dashes;
+
+        /**
+         * The chars of the current entity, null if not inside an entity
+         */
+        StringBuilder entity;
+
+        /**
+         * The name of the tag whose content is skipped (script / style), null if nothing is skipped
+         */
+        String skipping;
+
+        /**
+         * Whether whitespace was found that has not been written yet
+         */
+        boolean pendingSpace;
+
+        /**
+         * The amount of line breaks that were written in a row, to avoid long runs of empty lines (the start counts as an empty line)
+         */
+        int lineBreaks = 2;
+
+        /**
+         * The constructor of the writer
+         * @param out The writer that the text is written to
+         */
+        HtmlToTextWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (comment) { // Inside a comment, wait for "-->"
+                if (c == '-') {
+                    dashes++;
+                } else {
+                    comment = c != '>' || dashes < 2;
+                    dashes = 0;
+                }
+            } else if (tag != null) { // Inside a tag, wait for its end
+                if (quote != 0) { // Inside a quoted attribute value, wait for the closing quote
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') { // Start of a quoted attribute value
+                    quote = (char) c;
+                } else if (c == '>') {
+                    String name = tag.toString();
+                    tag = null;
+                    handleTag(name);
+                } else if (tag.length() < MAX_TOKEN) {
+                    tag.append((char) c);
+                    if (tag.length() == 3 && tag.toString().equals("!--")) { // Start of a comment, which may contain ">"
+                        tag = null;
+                        comment = true;
+                        dashes = 0;
+                    }
+                }
+            } else if (c == '<') { // Start of a tag, which also ends an unfinished entity
+                if (entity != null && skipping == null) {
+                    text("&" + entity);
+                }
+                entity = null;
+                tag = new StringBuilder();
+            } else if (skipping != null) { // Inside script / style
+                return;
+            } else if (entity != null) { // Inside an entity, e.g. &amp;
+                if (c == ';') {
+                    String name = entity.toString();
+                    entity = null;
+                    text(decodeEntity(name));
+                } else if ((Character.isLetterOrDigit(c) || c == '#') && entity.length() < MAX_TOKEN) {
+                    entity.append((char) c);
+                } else { // Not an entity, print it as it is
+                    String name = entity.toString();
+                    entity = null;
+                    text("&" + name);
+                    write(c);
+                }
+            } else if (c == '&') { // Start of an entity
+                entity = new StringBuilder();
+            } else {
+                text(String.valueOf((char) c));
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(str.charAt(i));
+            }
+        }
+
+        /**
+         * Handles the end of a tag, e.g. "p class='x'" or "/script"
+         * @param tag The content of the tag between "<" and ">"
+         */
+        void handleTag(String tag) throws IOException {
+            boolean closing = tag.startsWith("/");
+            String name = tag.substring(closing ? 1 : 0).trim().toLowerCase().split("[\\s/]", 2)[0];
+
+            if (name.equals("script") || name.equals("style")) {
+                skipping = closing ? null : name;
+            } else if (name.equals("br")) {
+                lineBreak();
+            } else if (PARAGRAPH_TAGS.contains(name)) {
+                while (lineBreaks < 2) {
+                    lineBreak();
+                }
+            } else if (LINE_TAGS.contains(name)) {
+                if (lineBreaks == 0) {
+                    lineBreak();
+                }
+                if (name.equals("li") && !closing) { // List items start with a dash
+                    text("- ");
+                }
+            }
+        }
+
+        /**
+         * Writes text, collapsing whitespace into a single space
+         * @param text The text
+         */
+        void text(String text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    pendingSpace = true;
+                } else {
+                    if (pendingSpace && lineBreaks == 0) { // Whitespace at the start of a line is dropped
+                        out.write(' ');
+                    }
+                    pendingSpace = false;
+                    out.write(c);
+                    lineBreaks = 0;
+                }
+            }
+        }
+
+        /**
+         * Writes a line break, but never more than one empty line in a row
+         */
+        void lineBreak() throws IOException {
+            pendingSpace = false;
+            if (lineBreaks < 2) {
+                out.write('\n');
+                lineBreaks++;
+            }
+        }
+
+        /**
+         * Decodes an entity, e.g. "amp" or "#252"
+         * @param name The name of the entity without "&" and ";"
+         * @return The decoded text, or the entity itself if it is unknown
+         */
+        static String decodeEntity(String name) {
+            switch (name.toLowerCase()) {
+                case "amp": return "&";
+                case "lt": return "<";
+                case "gt": return ">";
+                case "quot": return "\"";
+                case "apos": return "'";
+                case "nbsp": return " ";
+            }
+            try {
+                if (name.startsWith("#x") || name.startsWith("#X")) {
+                    return new String(Character.toChars(Integer.parseInt(name.substring(2), 16)));
+                } else if (name.startsWith("#")) {
+                    return new String(Character.toChars(Integer.parseInt(name.substring(1))));
+                }
+            } catch (IllegalArgumentException ignored) {} // also covers invalid code points
+            return "&" + name + ";";
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (entity != null) { // A dangling "&" at the end is printed as it is
+                text("&" + entity);
+                entity = null;
+            }
+            out.flush();
+        }
+    }
+}
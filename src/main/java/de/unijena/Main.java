@@ -28,6 +28,15 @@ public abstract class Main {
             }
             return true;
         });
+        commands.put("IMAPClientReadV1", (bool) -> { // Command for the first version of the IMAP client to read emails from the server
+            try {
+                IMAPClientReadV1.main();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return false;
+            }
+            return true;
+        });
 
         System.out.println("Enter the name of the class you want to run: "); // Ask the user for the name of the class he wants to run
         System.out.println("Available classes: " + commands.keySet()); // Print all available classes
@@ -5,10 +5,21 @@ import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.Socket;
 import java.net.URLDecoder;
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 public abstract class SocketClientReadV1 {
 
+    /**
+     * Messages larger than this (in bytes, as reported by LIST) are only fetched as a preview via TOP
+     */
+    private static final long PREVIEW_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The amount of body lines that are fetched for a preview
+     */
+    private static final int PREVIEW_LINES = 50;
+
     public static void main() throws Exception {
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 
@@ -101,48 +112,84 @@ public abstract class SocketClientReadV1 {
             }
         }
 
-        // Initiate, connect and authenticate the client
-        Client client = new Client();
-        client.connect(host, portNumber, secure);
-        client.authenticate(email, password);
-        System.out.println("Connected to " + host + " on port " + portNumber + " as " + email);
-
-        // Print all message indexes, their date and subject
-        System.out.println("================================================================================");
-        client.printAllMails();
-        System.out.println("================================================================================");
-
-        // Tell the user how many messages are in the inbox
-        int totalAmount = client.getMailAmount();
-        System.out.println("Total amount of messages: " + totalAmount);
-
-        // Listen for commands from the user
+        // Get the download budget for this session, default to unlimited
+        System.out.println("[OPTIONAL] Enter the download budget for this session in KB ('unlimited'): ");
+        long budget = -1;
         while (true) {
-            System.out.println("Enter the number of the message you want to read or close to exit: ");
-            String command = br.readLine(); // read the command from the user
+            String budgetInput = br.readLine();
+
+            // if the input was empty, use the default value
+            if (budgetInput.equals("")) {
+                break;
+            }
 
-            // Check the command against known commands
+            // if the input is not a positive number, it is invalid, else it is valid
             try {
-                if (command.equals("close")) { // if the command is close, close the connection
-                    System.out.println("================================================================================");
+                budget = Long.parseLong(budgetInput) * 1024;
+                if (budget > 0) {
                     break;
-                } else { // if the command is not close, try to parse it as an integer
-                    System.out.println("================================================================================");
-                    int messageNumber = Integer.parseInt(command); // parse the command as an integer
-                    client.printMail(messageNumber); // print the message with the given number
-                    System.out.println("================================================================================");
                 }
-            } catch (NumberFormatException e) { // if the command is not an integer, print an error message
-                System.out.println("Invalid input!");
-                System.out.println("================================================================================");
+                System.out.println("The budget has to be positive. Please enter a valid budget or leave the field empty for no limit: ");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid budget. Please enter a valid budget or leave the field empty for no limit: ");
             }
         }
 
-        System.out.println("Closing connection..."); // tell the user that the connection is closing
-        client.close(); // close the connection
+        // Everything after the login is printed through the buffered console, which is flushed before waiting for the user
+        PrintWriter out = MailPipeline.console();
+        try {
+            // Initiate, connect and authenticate the client
+            Client client = new Client(budget, out);
+            client.connect(host, portNumber, secure);
+            client.authenticate(email, password);
+            out.println("Connected to " + host + " on port " + portNumber + " as " + email);
+
+            // Print all message indexes, their size, date and subject
+            out.println("================================================================================");
+            client.printAllMails();
+            out.println("================================================================================");
+
+            // Tell the user how many messages are in the inbox
+            int totalAmount = client.getMailAmount();
+            out.println("Total amount of messages: " + totalAmount);
+
+            // Listen for commands from the user
+            while (true) {
+                out.println("Enter the number of the message you want to read, 'full <number>' to download a previewed message completely or close to exit: ");
+                out.flush(); // show everything that was printed before waiting for the user
+                String command = br.readLine(); // read the command from the user
+
+                // Check the command against known commands
+                try {
+                    if (command.equals("close")) { // if the command is close, close the connection
+                        out.println("================================================================================");
+                        break;
+                    } else if (command.startsWith("full ")) { // if the command is full, download the whole message regardless of its size
+                        out.println("================================================================================");
+                        int messageNumber = Integer.parseInt(command.substring(5).trim()); // parse the rest of the command as an integer
+                        client.printMail(messageNumber, true); // print the complete message with the given number
+                        out.println("================================================================================");
+                    } else { // if the command is not close, try to parse it as an integer
+                        out.println("================================================================================");
+                        int messageNumber = Integer.parseInt(command); // parse the command as an integer
+                        client.printMail(messageNumber, false); // print the message with the given number, previewing it if it is large
+                        out.println("================================================================================");
+                    }
+                } catch (NumberFormatException e) { // if the command is not an integer, print an error message
+                    out.println("Invalid input!");
+                    out.println("================================================================================");
+                }
+            }
+
+            out.println("Closing connection..."); // tell the user that the connection is closing
+            out.flush();
+            client.close(); // close the connection
+        } finally {
+            out.flush(); // also show the buffered output if an exception ends the client
+        }
     }
 
-    private static class Client {
+    static class Client {
         /**
          * The socket that is used to connect to the server
          */
@@ -163,6 +210,11 @@ public abstract class SocketClientReadV1 {
          */
         PrintWriter writer;
 
+        /**
+         * The writer that the listing and the messages are printed through, the buffered console in the interactive client
+         */
+        PrintWriter out;
+
         /**
          * The last read line from the server
          */
@@ -173,10 +225,40 @@ public abstract class SocketClientReadV1 {
          */
         boolean secure;
 
+        /**
+         * The sizes of all messages in bytes by their number, as reported by LIST
+         */
+        Map<Integer, Long> sizes = new LinkedHashMap<>();
+
+        /**
+         * The amount of bytes that may be downloaded in this session, -1 if unlimited
+         */
+        long budget;
+
+        /**
+         * The amount of bytes that have been downloaded in this session
+         */
+        long received;
+
+        /**
+         * Whether the last read line was the "." that ends a multi-line response, a "." line of the data itself arrives as ".." (see RFC 1939)
+         */
+        boolean endOfData;
+
+        /**
+         * Whether the server supports TOP, which is optional (see RFC 1939), until it answers a TOP with -ERR
+         */
+        boolean topSupported = true;
+
         /**
          * The constructor of the client
+         * @param budget The amount of bytes that may be downloaded in this session, -1 if unlimited
+         * @param out The writer that the listing and the messages are printed through
          */
-        public Client() {}
+        public Client(long budget, PrintWriter out) {
+            this.budget = budget;
+            this.out = out;
+        }
 
         /**
          * Connects to the server
@@ -190,17 +272,36 @@ public abstract class SocketClientReadV1 {
                 SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
                 sslSocket = (SSLSocket) factory.createSocket(host, port);
                 sslSocket.setKeepAlive(true);
-                reader = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
+                reader = new BufferedReader(new InputStreamReader(sslSocket.getInputStream(), StandardCharsets.ISO_8859_1));
                 writer = new PrintWriter(sslSocket.getOutputStream(), true);
             } else {
                 socket = new Socket(host, port);
                 socket.setKeepAlive(true);
-                reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
                 writer = new PrintWriter(socket.getOutputStream(), true);
             }
             line = reader.readLine();
         }
 
+        /**
+         * Reads the next line from the server and adds it to the amount of received bytes<br>
+         * The extra "." of dot-stuffed lines is removed, the end of a multi-line response is signalled by {@link #endOfData}
+         * @return The line that was read
+         * @throws IOException If the reading fails or the connection is closed
+         */
+        String readLine() throws IOException {
+            String read = reader.readLine();
+            if (read == null) {
+                throw new EOFException("Connection closed by the server");
+            }
+            received += read.length() + 2; // count the CRLF that was stripped by the reader
+            endOfData = read.equals("."); // checked before the extra "." is removed, so that a "." in the data does not end the response
+            if (read.startsWith("..")) { // Lines of a message that start with "." are sent with an extra "." (see RFC 1939)
+                read = read.substring(1);
+            }
+            return read;
+        }
+
         /**
          * Authenticates the client
          * @param email The email address of the user
@@ -209,9 +310,9 @@ public abstract class SocketClientReadV1 {
          */
         public void authenticate(String email, String password) throws IOException {
             writer.println("USER " + email);
-            line = reader.readLine();
+            line = readLine();
             writer.println("PASS " + password);
-            line = reader.readLine();
+            line = readLine();
             if (!line.startsWith("+OK")) {
                 throw new IOException("Authentication failed!");
             }
@@ -225,14 +326,36 @@ public abstract class SocketClientReadV1 {
             int numberOfMessages; // Amount of total messages
 
             writer.println("STAT"); // Get the amount of total messages (Returns: +OK <number of messages> <total size of messages>)
-            line = reader.readLine(); // Read the response
+            line = readLine(); // Read the response
             numberOfMessages = Integer.parseInt(line.split(" ")[1]); // Get the amount of total messages
 
-            System.out.println(); // Print a new line
+            loadSizes(); // Get the sizes of all messages, so that large messages can be previewed instead of downloaded
+
+            out.println(); // Print a new line
             for (int i = 1; i <= numberOfMessages; i++) { // Loop through all messages
-                System.out.print("[" + i + "] "); // Print the message number
-                writer.println("RETR " + i); // Get the message (Returns: +OK message follows, <message>, .) (see https://de.wikipedia.org/wiki/Post_Office_Protocol)
-                line = reader.readLine(); // Read the response
+                long size = sizes.getOrDefault(i, 0L); // The size of the message as reported by LIST
+                if (budget != -1 && received >= budget) { // Even the headers would exceed the budget, so stop loading them
+                    out.println("The download budget is used up, the headers of the messages " + i + " to " + numberOfMessages + " are not loaded.");
+                    out.println(); // Print a new line
+                    break;
+                }
+
+                out.print("[" + i + "] (" + formatSize(size) + ") "); // Print the message number and size
+                if (!top(i, 0)) { // Get only the headers of the message, without TOP they can only be read by downloading the whole message
+                    if (size > PREVIEW_THRESHOLD || (budget != -1 && received + size > budget)) { // Never download a large message just to list it
+                        out.println("Headers not loaded, the server does not support previews and the message is too large.");
+                        out.println(); // Print a new line
+                        continue;
+                    }
+                    writer.println("RETR " + i); // Get the whole message (Returns: +OK message follows, <message>, .)
+                    line = readLine(); // Read the response
+                }
+                if (!line.startsWith("+OK")) { // The server answered with -ERR, so no lines follow
+                    out.println("Message could not be read!");
+                    out.println(); // Print a new line
+                    continue;
+                }
+                line = readLine(); // Read the first line of the message
 
                 boolean foundDate = false; // If the date has already been printed
                 boolean foundSubject = false; // If the subject has already been printed
@@ -240,7 +363,7 @@ public abstract class SocketClientReadV1 {
                 String date = ""; // The date of the message
                 StringBuilder subject = new StringBuilder(); // The subject of the message
 
-                while (!line.equals(".")) { // Loop through all lines of the message
+                while (!endOfData) { // Loop through all lines of the message
                     if (line.toLowerCase().startsWith("date: ") && !foundDate) { // If the line starts with "Date: " and the date has not been printed yet
                         date = line.substring(6); // Get the date
                         foundDate = true; // Set the date to printed
@@ -252,7 +375,7 @@ public abstract class SocketClientReadV1 {
 
                         // while the line starts with " " it still belongs to the subject
                         do {
-                            line = reader.readLine(); // Read the next line
+                            line = readLine(); // Read the next line
                             if (line.startsWith(" ")) { // If the line starts with " "
                                 subject.append(line.substring(1)); // Append the line to the subject
                             }
@@ -260,20 +383,61 @@ public abstract class SocketClientReadV1 {
                         continue;
                     }
 
-                    line = reader.readLine(); // Read the next line
+                    line = readLine(); // Read the next line
                 }
 
                 // date is of format: "Wed, 21 Oct 2015 12:34:56 +0200 (CEST)"
                 // remove everything after 5th space
                 String[] dateParts = date.split(" "); // split the date into parts
-                date = dateParts[0] + " " + dateParts[1] + " " + dateParts[2] + " " + dateParts[3] + " " + dateParts[4]; // get the first 5 parts of the date
+                date = String.join(" ", Arrays.copyOf(dateParts, Math.min(5, dateParts.length))); // get the first 5 parts of the date
+
+                out.print("Date: " + date + ", "); // Print the date
+                out.println("Subject: " + anyDecode(subject.toString())); // Print the subject
+                out.println(); // Print a new line
+            }
+        }
+
+        /**
+         * Loads the sizes of all messages in the inbox of the user into {@link #sizes}
+         * @throws IOException If the listing of the emails fails
+         */
+        void loadSizes() throws IOException {
+            writer.println("LIST"); // Get the sizes of all messages (Returns: +OK, <number> <size> per message, .)
+            line = readLine(); // Read the response
+            if (!line.startsWith("+OK")) {
+                throw new IOException("Listing failed!");
+            }
 
-                System.out.print("Date: " + date + ", "); // Print the date
-                System.out.println("Subject: " + anyDecode(subject.toString())); // Print the subject
-                System.out.println(); // Print a new line
+            sizes.clear();
+            line = readLine(); // Read the first entry
+            while (!endOfData) { // Loop through all entries
+                String[] parts = line.split(" "); // split the entry into number and size
+                sizes.put(Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+                line = readLine(); // Read the next entry
             }
         }
 
+        /**
+         * Requests the headers and the first lines of a message with TOP and reads the response into {@link #line}<br>
+         * If the server does not support TOP, nothing is requested (now and for the rest of the session)
+         * @param messageNumber The number of the message
+         * @param lines The amount of body lines to get
+         * @return Whether the server answered with +OK and the lines follow, false if TOP is not supported
+         * @throws IOException If the reading of the response fails
+         */
+        boolean top(int messageNumber, int lines) throws IOException {
+            if (!topSupported) {
+                return false;
+            }
+            writer.println("TOP " + messageNumber + " " + lines); // Get the headers and the first lines of the body (Returns: +OK, <headers>, <lines>, .) (see RFC 1939)
+            line = readLine(); // Read the response
+            if (line.startsWith("+OK")) {
+                return true;
+            }
+            topSupported = false; // Remember that TOP is not supported, the message exists (it was listed by LIST)
+            return false;
+        }
+
         /**
          * Gets the total amount of messages in the inbox of the user
          * @return The total amount of messages in the inbox of the user
@@ -282,94 +446,210 @@ public abstract class SocketClientReadV1 {
         int getMailAmount() throws IOException {
             int numberOfMessages; // Amount of total messages
             writer.println("STAT"); // Get the amount of total messages (Returns: +OK <number of messages> <total size of messages>)
-            line = reader.readLine(); // Read the response
+            line = readLine(); // Read the response
             numberOfMessages = Integer.parseInt(line.split(" ")[1]); // Get the amount of total messages
             return numberOfMessages; // Return the amount of total messages
         }
 
         /**
-         * Prints the message with the given number
+         * Prints the message with the given number<br>
+         * Messages larger than {@link #PREVIEW_THRESHOLD} are only previewed via TOP, unless full is set, messages larger than the remaining budget are always only previewed.
+         * If the server does not support TOP, such messages are not downloaded at all
          * @param messageNumber The number of the message that should be printed
+         * @param full Whether to download the message completely regardless of the preview threshold
          * @throws IOException If the reading of the emails fails
          */
-        public void printMail(int messageNumber) throws IOException {
-            writer.println("RETR " + messageNumber); // Get the message (Returns: +OK message follows, <message>, .) (see https://de.wikipedia.org/wiki/Post_Office_Protocol)
-
-            String sender = ""; // The sender of the message
-            String date = ""; // The date of the message
-            String receiver = ""; // The receiver of the message
-            String subject = ""; // The subject of the message
-            StringBuilder body = new StringBuilder(); // The body of the message
+        public void printMail(int messageNumber, boolean full) throws IOException {
+            Long size = sizes.get(messageNumber); // The size of the message as reported by LIST
+            if (size == null) { // If the message is not in the listing, the server would only answer with -ERR
+                out.println("Message not found!");
+                return;
+            }
 
-            boolean bodyMode = false; // If the body of the message is being read
-            while (true) { // Loop through all lines of the message
-                String newLine = reader.readLine(); // Read the next line
+            boolean overBudget = budget != -1 && received + size > budget; // Whether the message does not fit into the remaining budget
+            boolean preview = overBudget || (!full && size > PREVIEW_THRESHOLD); // Large messages are only previewed unless requested otherwise
 
-                if (newLine.equals(".")) { // If the line is a dot, break the loop
-                    break;
+            if (preview) {
+                if (!top(messageNumber, PREVIEW_LINES)) { // The server does not support TOP, and the whole message must not be downloaded
+                    if (overBudget) {
+                        out.println("The server does not support previews and downloading " + formatSize(size) + " would exceed the remaining budget of " + formatSize(Math.max(0, budget - received)) + ", the message is not downloaded.");
+                    } else {
+                        out.println("The server does not support previews and the message is larger than " + formatSize(PREVIEW_THRESHOLD) + ", enter 'full " + messageNumber + "' to download the whole message (" + formatSize(size) + ").");
+                    }
+                    return;
+                }
+                if (overBudget) {
+                    out.println("Downloading " + formatSize(size) + " would exceed the remaining budget of " + formatSize(Math.max(0, budget - received)) + ", showing a preview instead.");
                 }
+            } else {
+                writer.println("RETR " + messageNumber); // Get the message (Returns: +OK message follows, <message>, .) (see https://de.wikipedia.org/wiki/Post_Office_Protocol)
+                line = readLine(); // Read the response
+            }
+            if (!line.startsWith("+OK")) { // The server answered with -ERR, so no lines follow
+                out.println("Message not found!");
+                return;
+            }
 
-                // if the newLine starts with "    " or " ", add newLine to line
-                if ((newLine.startsWith("   ") || newLine.startsWith(" ") || newLine.startsWith("\t")) && !bodyMode) {
-                    line += newLine;
-                } else {
-                    if (line.startsWith("-ERR")) { // If the line starts with "-ERR"
-                        System.out.println("Message not found!"); // Print an error message
-                        break; // Break the loop
-                    } else if (line.equals(".")) { // If the line is "."
-                        break; // Break the loop
-                    }
+            Map<String, String> headers = readHeaders(); // Read the whole header block, the headers are printed once it is complete
 
-                    // avoid image base64 blocks because of overflows
-                    if (line.toLowerCase().startsWith("content-transfer-encoding: base64") || line.toLowerCase().startsWith("content-type: image/")) {
-                        while (!line.equals(".")) { // Loop through all lines of the message
-                            line = reader.readLine(); // Read the next line
-                        }
-                        break;
-                    }
+            String sender = address(headers.getOrDefault("from", "")); // The sender of the message
+            String receiver = address(headers.getOrDefault("to", "")); // The receiver of the message
+            String subject = anyDecode(headers.getOrDefault("subject", "")); // The subject of the message
+            String[] dateParts = headers.getOrDefault("date", "").split(" "); // split the date into parts
+            String date = String.join(" ", Arrays.copyOf(dateParts, Math.min(5, dateParts.length))); // get the first 5 parts of the date
 
-                    if (line.toLowerCase().startsWith("from: ")) { // If the line starts with "From: ", split by <
-                        sender = line.substring(6).trim(); // Get the sender
-                        if (sender.contains("<")) {
-                            sender = sender.substring(sender.indexOf("<") + 1, sender.indexOf(">"));
-                        }
-                    }
+            printHeaders(date, sender, receiver, subject, size);
+            if (!endOfData) { // The body follows after the blank line
+                String contentType = headers.getOrDefault("content-type", "text/plain");
+                if (contentType.toLowerCase().startsWith("multipart/")) {
+                    printMultipart(contentType);
+                } else {
+                    printPart(headers, List.of(), false);
+                }
+            }
+            while (!endOfData) { // Skip whatever is left, e.g. the epilogue of a multipart message
+                line = readLine();
+            }
+            out.flush();
 
-                    else if (line.toLowerCase().startsWith("date: ")) { // If the line starts with "Date: "
-                        String[] dateParts = line.substring(6).split(" "); // split the date into parts
-                        date = dateParts[0] + " " + dateParts[1] + " " + dateParts[2] + " " + dateParts[3] + " " + dateParts[4]; // get the first 5 parts of the date
-                    }
+            if (preview && overBudget) { // The whole message cannot be downloaded in this session
+                out.println("[Preview of the first " + PREVIEW_LINES + " lines, the whole message (" + formatSize(size) + ") exceeds the download budget]");
+            } else if (preview) { // Tell the user how to get the whole message, POP3 cannot continue a download, so it is downloaded again from the start
+                out.println("[Preview of the first " + PREVIEW_LINES + " lines, enter 'full " + messageNumber + "' to download the whole message (" + formatSize(size) + ")]");
+            }
+        }
 
-                    else if (line.toLowerCase().startsWith("to: ")) { // If the line starts with "To: ", split by <
-                        receiver = line.substring(4).trim(); // Get the receiver
-                        if (receiver.contains("<")) {
-                            receiver = receiver.substring(receiver.indexOf("<") + 1, receiver.indexOf(">"));
-                        }
-                    }
+        /**
+         * Prints the sender, date, receiver, subject and size of a message and flushes them, so they are shown before the body is downloaded
+         * @param date The date of the message
+         * @param sender The sender of the message
+         * @param receiver The receiver of the message
+         * @param subject The subject of the message
+         * @param size The size of the message in bytes
+         */
+        void printHeaders(String date, String sender, String receiver, String subject, long size) {
+            out.println("Date: " + date);
+            out.println("Sender: " + sender);
+            out.println("Receiver: " + receiver);
+            out.println("Subject: " + subject);
+            out.println("Size: " + formatSize(size));
+            out.println("======================== Body =============================");
+            out.flush();
+        }
 
-                    else if (line.toLowerCase().startsWith("subject: ")) { // If the line starts with "Subject: "
-                        subject = anyDecode(line.substring(9)); // Get the subject
+        /**
+         * Reads a block of headers up to the blank line that ends it, continuation lines are joined with the line before<br>
+         * Afterwards {@link #line} is the blank line, or {@link #endOfData} is set if the message ended before
+         * @return The headers by their lower case name, only the first occurrence of each header is kept
+         * @throws IOException If the reading of the headers fails
+         */
+        Map<String, String> readHeaders() throws IOException {
+            Map<String, String> headers = new HashMap<>();
+            StringBuilder header = null; // The header that is being read, it may continue on the next lines
+            while (true) {
+                line = readLine();
+                if (header != null && (line.startsWith(" ") || line.startsWith("\t"))) { // The line continues the header
+                    header.append(' ').append(line.trim());
+                    continue;
+                }
+                if (header != null) { // The header is complete
+                    int colon = header.indexOf(":");
+                    if (colon > 0) {
+                        headers.putIfAbsent(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
                     }
+                }
+                if (line.isEmpty() || endOfData) { // End of the header block or of the message
+                    return headers;
+                }
+                header = new StringBuilder(line);
+            }
+        }
 
-                    else if (line.toLowerCase().startsWith("content-type: text/")) { // If the line starts with "Content-Type: text/plain; charset="
-                        bodyMode = true; // Set the body mode to true
-                    }
+        /**
+         * Prints the parts of a multipart message, the headers of the message have already been read<br>
+         * Of a multipart/alternative only the first text part is printed, other parts are printed as "[type: name]"
+         * @param contentType The content type of the message, containing the boundary
+         * @throws IOException If the reading of the message fails
+         */
+        void printMultipart(String contentType) throws IOException {
+            List<String> boundaries = new ArrayList<>(); // The boundaries of the nested multiparts, outermost first
+            Set<String> alternatives = new HashSet<>(); // The boundaries of the multipart/alternative parts
+            Set<String> printed = new HashSet<>(); // The boundaries of the multipart/alternative parts whose text was printed
+            addBoundary(contentType, boundaries, alternatives);
+
+            line = readLine(); // Read the first line of the preamble
+            while (!endOfData) {
+                String boundary = boundaryOf(line, boundaries);
+                if (boundary == null) { // Preamble or epilogue, which is not shown
+                    line = readLine();
+                    continue;
+                }
+                int index = boundaries.indexOf(boundary);
+                if (line.trim().equals("--" + boundary + "--")) { // The multipart ends, including all multiparts in it
+                    boundaries.subList(index, boundaries.size()).clear();
+                    line = readLine();
+                    continue;
+                }
+                boundaries.subList(index + 1, boundaries.size()).clear(); // A new part starts, nested multiparts of the previous part have ended
 
-                    if (bodyMode) { // If the body mode is true
-                        body.append(line).append("\n"); // Add the line to the body
-                    }
+                Map<String, String> headers = readHeaders();
+                if (endOfData) {
+                    break;
+                }
+                String type = headers.getOrDefault("content-type", "text/plain");
+                if (type.toLowerCase().startsWith("multipart/")) { // The body of the part is another multipart
+                    addBoundary(type, boundaries, alternatives);
+                    line = readLine();
+                    continue;
+                }
 
-                    line = newLine;
+                boolean text = type.toLowerCase().startsWith("text/");
+                printPart(headers, boundaries, text && printed.contains(boundary));
+                if (text && alternatives.contains(boundary)) {
+                    printed.add(boundary);
                 }
             }
+        }
 
-            // Print the sender, date, receiver, subject and body
-            System.out.println("Date: " + date);
-            System.out.println("Sender: " + sender);
-            System.out.println("Receiver: " + receiver);
-            System.out.println("Subject: " + subject);
-            System.out.println("======================== Body =============================");
-            System.out.println(body);
+        /**
+         * Streams the body of a part to the console, decoding its transfer encoding and charset<br>
+         * The body ends at the end of the message or at a line that starts a new part, which is left in {@link #line}
+         * @param headers The headers of the part
+         * @param boundaries The boundaries of the multiparts that the part is in
+         * @param skip Whether the body is not printed, e.g. the HTML alternative of a text that was already printed
+         * @throws IOException If the reading of the part fails
+         */
+        void printPart(Map<String, String> headers, List<String> boundaries, boolean skip) throws IOException {
+            String type = headers.getOrDefault("content-type", "text/plain");
+            String mimeType = type.split(";")[0].trim().toLowerCase();
+            OutputStream body = null; // The stream that the encoded lines are written to, null if they are not printed
+            if (!skip && mimeType.startsWith("text/")) {
+                String charset = parameter(type, "charset");
+                body = MailPipeline.body(out, headers.getOrDefault("content-transfer-encoding", "7BIT"), charset == null ? "US-ASCII" : charset, mimeType.equals("text/html"));
+            } else if (!skip) { // Attachments are not downloaded into memory, only their type and name are shown
+                String name = parameter(headers.getOrDefault("content-disposition", ""), "filename");
+                if (name == null) {
+                    name = parameter(type, "name");
+                }
+                out.println("[" + mimeType + (name == null ? "" : ": " + anyDecode(name)) + "]");
+            }
+
+            line = readLine();
+            while (!endOfData && boundaryOf(line, boundaries) == null) {
+                if (body != null) {
+                    body.write(line.getBytes(StandardCharsets.ISO_8859_1)); // The reader maps every byte to one char, so this gives back the original bytes
+                    body.write('\r');
+                    body.write('\n');
+                    if (!reader.ready()) { // Show what has been received before waiting for more
+                        body.flush();
+                    }
+                }
+                line = readLine();
+            }
+            if (body != null) {
+                body.close(); // Flush the rest of the body, the console stays open
+                out.println();
+            }
         }
 
         /**
@@ -378,7 +658,7 @@ public abstract class SocketClientReadV1 {
          */
         public void close() throws IOException {
             writer.println("QUIT"); // Close the connection (Returns: +OK POP3 server signing off)
-            line = reader.readLine(); // Read the response
+            line = readLine(); // Read the response
             if (secure) { // If the connection is secure
                 sslSocket.close(); // Close the socket
             } else { // If the connection is not secure
@@ -387,6 +667,93 @@ public abstract class SocketClientReadV1 {
         }
     }
 
+    /**
+     * Gets the address of a "From" or "To" header, e.g. "max@uni-jena.de" of "Max <max@uni-jena.de>"
+     * @param header The value of the header
+     * @return The address in the angle brackets, or the whole value if there are none
+     */
+    static String address(String header) {
+        if (header.contains("<") && header.indexOf(">") > header.indexOf("<")) {
+            return header.substring(header.indexOf("<") + 1, header.indexOf(">"));
+        }
+        return header.trim();
+    }
+
+    /**
+     * Gets a parameter of a header, e.g. the charset of "text/plain; charset=\"utf-8\""
+     * @param header The value of the header
+     * @param name The name of the parameter
+     * @return The value of the parameter without quotes, or null if the header does not have it
+     */
+    static String parameter(String header, String name) {
+        for (String part : header.split(";")) {
+            int equals = part.indexOf('=');
+            if (equals > 0 && part.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                String value = part.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the boundary of a multipart content type to the given boundaries
+     * @param contentType The content type, e.g. "multipart/alternative; boundary=abc"
+     * @param boundaries The boundaries of the nested multiparts
+     * @param alternatives The boundaries of the multipart/alternative parts
+     */
+    static void addBoundary(String contentType, List<String> boundaries, Set<String> alternatives) {
+        String boundary = parameter(contentType, "boundary");
+        if (boundary == null) { // Without a boundary the parts cannot be told apart
+            return;
+        }
+        boundaries.add(boundary);
+        if (contentType.toLowerCase().startsWith("multipart/alternative")) {
+            alternatives.add(boundary);
+        }
+    }
+
+    /**
+     * Checks whether a line is a delimiter line ("--boundary" or "--boundary--") of one of the given boundaries
+     * @param line The line of the message
+     * @param boundaries The boundaries of the nested multiparts
+     * @return The boundary that the line belongs to, or null if it is a normal line
+     */
+    static String boundaryOf(String line, List<String> boundaries) {
+        if (!line.startsWith("--")) {
+            return null;
+        }
+        String delimiter = line.trim();
+        for (String boundary : boundaries) {
+            if (delimiter.equals("--" + boundary) || delimiter.equals("--" + boundary + "--")) {
+                return boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Formats a given amount of bytes as a human readable size (B, KB, MB, GB)
+     * @param bytes The amount of bytes
+     * @return The formatted size, e.g. "1.5 MB"
+     */
+    static String formatSize(long bytes) {
+        if (bytes < 1024) { // If the size is smaller than 1 KB, print it in bytes
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB"};
+        double size = bytes;
+        int unit = -1;
+        while (size >= 1024 && unit < units.length - 1) { // Divide until the size fits the unit
+            size /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", size, units[unit]);
+    }
+
     /**
      * Decodes a given "Subject" String, based on the format that is provided (UTF-8 / utf-8,  iso-8859-1, plaintext), as denoted by "=?(charset)?(encoding)?(encoded text)?="<br>
      * Cases are: <br>
@@ -407,7 +774,7 @@ public abstract class SocketClientReadV1 {
      * <p>
      * =?utf-8?B?TGluQWxnIGbDvHIgSW5mbyAoMjAyMik6IExlc2VhdWZnYWJlIGbDvHIgZGk=?=  =?utf-8?B?ZSBMaW5lYXJlIEFsZ2VicmE=?=
      */
-    private static String anyDecode(String subject) {
+    static String anyDecode(String subject) {
         if (subject.startsWith("=?")) { // If the subject starts with "=?"
             String[] splits = subject.split("=\\?"); // Split the subject by "=?"
             StringBuilder decoded = new StringBuilder(); // The decoded subject
@@ -431,7 +798,7 @@ public abstract class SocketClientReadV1 {
                             decoded.append(URLDecoder.decode(encodedText, charset)); // Decode the encoded text
                         } catch (UnsupportedEncodingException e) {
                             e.printStackTrace();
-                            System.out.println("Unsupported encoding: " + charset);
+                            MailPipeline.console().println("Unsupported encoding: " + charset);
                         }
                     } else if (encoding.equals("B")) { // If the encoding is "B"
                         byte[] bytes = Base64.getDecoder().decode(encodedText); // Decode the encoded text
@@ -439,7 +806,7 @@ public abstract class SocketClientReadV1 {
                             decoded.append(new String(bytes, charset)); // Decode the bytes
                         } catch (UnsupportedEncodingException e) {
                             e.printStackTrace();
-                            System.out.println("Unsupported encoding: " + charset);
+                            MailPipeline.console().println("Unsupported encoding: " + charset);
                         }
                     }
                 } catch (Exception ignored) {}
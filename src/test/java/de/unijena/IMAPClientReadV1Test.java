@@ -0,0 +1,337 @@
+package de.unijena;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the IMAP client against an in-process stand-in server, without any external network
+ */
+@Timeout(10)
+class IMAPClientReadV1Test {
+
+    /**
+     * The plain text of the second message, long enough to be previewed and quoted-printable encoded
+     */
+    private static final String LONG_TEXT = "Gr=C3=BC=C3=9Fe aus Jena=\r\n!\r\n" + "x".repeat(20 * 1024) + "\r\nEnde\r\n";
+
+    FakeServer server;
+    StringWriter output;
+    IMAPClientReadV1.Client client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeServer();
+        server.messages.add(new FakeMessage("=?utf-8?q?Gr=C3=BC=C3=9Fe?=", 1234, "(\"text\" \"plain\" (\"charset\" \"utf-8\") NIL NIL \"7bit\" 13 1 NIL NIL NIL)", "Hallo zurueck\r\n"));
+        server.messages.add(new FakeMessage("Bericht", 5 * 1024 * 1024,
+                "((\"text\" \"plain\" (\"charset\" \"utf-8\") NIL NIL \"quoted-printable\" " + LONG_TEXT.length() + " 2 NIL NIL NIL)"
+                        + "(\"image\" \"png\" (\"name\" \"bild.png\") NIL NIL \"base64\" 5000000 NIL NIL NIL) \"mixed\")", LONG_TEXT));
+        server.start();
+
+        output = new StringWriter();
+        client = new IMAPClientReadV1.Client(new PrintWriter(output, true));
+        client.connect("127.0.0.1", server.port(), false);
+        client.authenticate("max.mustermann@uni-jena.de", "password");
+        client.examine("INBOX");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void listsMessagesFromEnvelopeAndSize() throws IOException {
+        server.unsolicited = "* 7 FETCH (FLAGS (\\Seen))"; // sent after every FETCH result, must be ignored
+        assertEquals(2, client.exists);
+
+        client.printMails(1, client.exists);
+
+        String listing = output.toString();
+        assertTrue(listing.contains("[1] (1.2 KB) Date: Wed, 21 Oct 2015 12:34:56, Subject: Gr\u00fc\u00dfe"), listing);
+        assertTrue(listing.contains("[2] (5.0 MB) Date: Wed, 21 Oct 2015 12:34:56, Subject: Bericht"), listing);
+        assertFalse(listing.contains("[7]"), listing);
+        assertTrue(server.commands().contains("FETCH 1:2 (ENVELOPE RFC822.SIZE)"), server.commands().toString());
+        assertFalse(server.commands().stream().anyMatch(command -> command.contains("BODY")), "the listing must not download any content");
+    }
+
+    @Test
+    void printsEveryMessageOfTheListingAsSoonAsItArrives() throws Exception {
+        server.fetchCompletion = new CountDownLatch(1);
+
+        Future<?> listing = Executors.newSingleThreadExecutor().submit(() -> {
+            client.printMails(1, client.exists);
+            return null;
+        });
+
+        // Both messages are shown while the server has not completed the FETCH yet
+        waitFor(() -> output.toString().contains("Subject: Bericht"));
+        assertFalse(listing.isDone(), "the FETCH must not have completed yet");
+        server.fetchCompletion.countDown();
+        listing.get();
+
+        assertTrue(output.toString().contains("[1] (1.2 KB) Date: Wed, 21 Oct 2015 12:34:56, Subject: Gr\u00fc\u00dfe"), output.toString());
+    }
+
+    @Test
+    void fetchesOnlyAPreviewOfTheTextPart() throws IOException {
+        server.unsolicited = "* 2 FETCH (FLAGS (\\Seen))";
+
+        client.printMail(2, false);
+
+        String message = output.toString();
+        assertTrue(message.contains("Subject: Bericht"), message);
+        assertTrue(message.contains("Sender: max@uni-jena.de"), message);
+        assertTrue(message.contains("Gr\u00fc\u00dfe aus Jena!"), message);
+        assertFalse(message.contains("Ende"), "only the preview must be downloaded");
+        assertTrue(message.contains("enter 'full 2' to download the whole text"), message);
+
+        List<String> bodyFetches = server.commands().stream().filter(command -> command.contains("BODY.PEEK")).toList();
+        assertEquals(List.of("FETCH 2 (BODY.PEEK[1]<0.16384>)"), bodyFetches, "only the partial text part must be fetched");
+    }
+
+    @Test
+    void fetchesTheWholeTextPartOnDemand() throws IOException {
+        client.printMail(2, true);
+
+        String message = output.toString();
+        assertTrue(message.contains("Gr\u00fc\u00dfe aus Jena!"), message);
+        assertTrue(message.contains("x".repeat(20 * 1024) + "\r\nEnde"), "the whole text must be printed");
+        assertFalse(message.contains("[Preview"), message);
+
+        List<String> bodyFetches = server.commands().stream().filter(command -> command.contains("BODY.PEEK")).toList();
+        assertEquals(List.of("FETCH 2 (BODY.PEEK[1])"), bodyFetches, "the text part must be fetched in one round trip, without the attachment");
+    }
+
+    @Test
+    void reportsMessagesThatArePushedWhileIdling() throws Exception {
+        // While idling, message 2 is deleted by another client and a new message arrives
+        server.messages.remove(1);
+        server.messages.add(new FakeMessage("Neu", 42, "(\"text\" \"plain\" NIL NIL NIL \"7bit\" 4 1 NIL NIL NIL)", "neu\r\n"));
+        server.idleEvents.add("* 2 EXPUNGE");
+        server.idleEvents.add("* 2 EXISTS");
+
+        PipedWriter enter = new PipedWriter();
+        BufferedReader input = new BufferedReader(new PipedReader(enter));
+        Future<?> idle = Executors.newSingleThreadExecutor().submit(() -> {
+            client.idle(input);
+            return null;
+        });
+
+        waitFor(() -> output.toString().contains("[IDLE] 1 new message(s) arrived"));
+        enter.write("\n");
+        enter.flush();
+        idle.get();
+
+        assertEquals(2, client.exists);
+        assertTrue(server.commands().contains("DONE"), server.commands().toString());
+        assertTrue(server.commands().contains("FETCH 2:2 (ENVELOPE RFC822.SIZE)"), "only the new message must be listed");
+        assertTrue(output.toString().contains("[2] (42 B) Date: Wed, 21 Oct 2015 12:34:56, Subject: Neu"), output.toString());
+        assertFalse(output.toString().contains("Bericht"), output.toString());
+    }
+
+    @Test
+    void acceptsUntaggedResponsesBeforeTheIdleConfirmation() throws Exception {
+        // The message arrived before IDLE was issued, the server announces it before confirming IDLE
+        server.messages.add(new FakeMessage("Neu", 42, "(\"text\" \"plain\" NIL NIL NIL \"7bit\" 4 1 NIL NIL NIL)", "neu\r\n"));
+        server.pendingEvents.add("* 3 EXISTS");
+
+        PipedWriter enter = new PipedWriter();
+        BufferedReader input = new BufferedReader(new PipedReader(enter));
+        Future<?> idle = Executors.newSingleThreadExecutor().submit(() -> {
+            client.idle(input);
+            return null;
+        });
+
+        waitFor(() -> output.toString().contains("[IDLE] 1 new message(s) arrived"));
+        enter.write("\n");
+        enter.flush();
+        idle.get();
+
+        assertEquals(3, client.exists);
+        assertFalse(output.toString().contains("Connection lost"), output.toString());
+        assertTrue(output.toString().contains("[3] (42 B) Date: Wed, 21 Oct 2015 12:34:56, Subject: Neu"), output.toString());
+    }
+
+    @Test
+    void reissuesIdleBeforeTheServerTimesOut() throws Exception {
+        client.idleRestartMillis = 100;
+
+        PipedWriter enter = new PipedWriter();
+        BufferedReader input = new BufferedReader(new PipedReader(enter));
+        Future<?> idle = Executors.newSingleThreadExecutor().submit(() -> {
+            client.idle(input);
+            return null;
+        });
+
+        waitFor(() -> server.commands().stream().filter(command -> command.equals("IDLE")).count() >= 3);
+        enter.write("\n");
+        enter.flush();
+        idle.get();
+
+        long idles = server.commands().stream().filter(command -> command.equals("IDLE")).count();
+        long dones = server.commands().stream().filter(command -> command.equals("DONE")).count();
+        assertEquals(idles, dones, "every IDLE must be ended with exactly one DONE");
+        assertTrue(output.toString().contains("No new messages."), output.toString());
+    }
+
+    /**
+     * Waits until the condition is true, the timeout of the test applies
+     */
+    private static void waitFor(Callable<Boolean> condition) throws Exception {
+        while (!condition.call()) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A message of the fake server
+     */
+    private record FakeMessage(String subject, long size, String bodyStructure, String text) {}
+
+    /**
+     * A minimal IMAP server that answers the commands of the client for one connection
+     */
+    private static class FakeServer implements Closeable {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final List<FakeMessage> messages = new CopyOnWriteArrayList<>();
+        final List<String> idleEvents = new CopyOnWriteArrayList<>();
+        final List<String> pendingEvents = new CopyOnWriteArrayList<>(); // sent before the IDLE confirmation
+        final List<String> commands = Collections.synchronizedList(new ArrayList<>());
+        volatile String unsolicited;
+        volatile CountDownLatch fetchCompletion; // if set, the tagged OK of a FETCH waits for it
+        Thread thread;
+
+        FakeServer() throws IOException {}
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        List<String> commands() {
+            synchronized (commands) {
+                return new ArrayList<>(commands);
+            }
+        }
+
+        void start() {
+            thread = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    serve(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)), socket.getOutputStream());
+                } catch (IOException ignored) {} // the client closed the connection
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void serve(BufferedReader in, OutputStream out) throws IOException {
+            send(out, "* OK fake server ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                String tag = parts[0];
+                String command = parts.length > 1 ? parts[1] : "";
+                commands.add(command);
+
+                if (command.equals("CAPABILITY")) {
+                    send(out, "* CAPABILITY IMAP4rev1 IDLE");
+                } else if (command.startsWith("EXAMINE")) {
+                    send(out, "* " + messages.size() + " EXISTS");
+                } else if (command.startsWith("FETCH")) {
+                    fetch(command, out);
+                } else if (command.equals("IDLE")) {
+                    for (String event : pendingEvents) {
+                        send(out, event);
+                    }
+                    pendingEvents.clear();
+                    send(out, "+ idling");
+                    for (String event : idleEvents) {
+                        send(out, event);
+                    }
+                    idleEvents.clear();
+                    String done = in.readLine();
+                    commands.add(done);
+                    if (!"DONE".equals(done)) {
+                        send(out, tag + " BAD expected DONE");
+                        continue;
+                    }
+                } else if (command.equals("LOGOUT")) {
+                    send(out, "* BYE");
+                    send(out, tag + " OK LOGOUT completed");
+                    return;
+                }
+                send(out, tag + " OK done");
+            }
+        }
+
+        void fetch(String command, OutputStream out) throws IOException {
+            Matcher fetch = Pattern.compile("FETCH (\\d+)(?::(\\d+))? \\((.*)\\)").matcher(command);
+            assertTrue(fetch.matches(), command);
+            int from = Integer.parseInt(fetch.group(1));
+            int to = fetch.group(2) == null ? from : Integer.parseInt(fetch.group(2));
+            String items = fetch.group(3);
+
+            for (int number = from; number <= to; number++) {
+                FakeMessage message = messages.get(number - 1);
+                Matcher body = Pattern.compile("BODY\\.PEEK\\[([\\d.]+)](?:<(\\d+)\\.(\\d+)>)?").matcher(items);
+                if (body.find()) { // Only the requested range of the text is sent, as a literal
+                    byte[] text = message.text().getBytes(StandardCharsets.ISO_8859_1);
+                    int offset = body.group(2) == null ? 0 : Integer.parseInt(body.group(2));
+                    int length = body.group(3) == null ? text.length : Integer.parseInt(body.group(3));
+                    int start = Math.min(offset, text.length);
+                    int end = Math.min(text.length, start + length);
+                    String origin = body.group(2) == null ? "" : "<" + offset + ">";
+                    out.write(("* " + number + " FETCH (BODY[" + body.group(1) + "]" + origin + " {" + (end - start) + "}\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(text, start, end - start);
+                    send(out, ")");
+                    continue;
+                }
+
+                // The subject is sent as a literal, like servers do for non-trivial strings
+                StringBuilder response = new StringBuilder("* " + number + " FETCH (");
+                response.append("ENVELOPE (\"Wed, 21 Oct 2015 12:34:56 +0200\" {").append(message.subject().length()).append("}\r\n").append(message.subject())
+                        .append(" ((\"Max\" NIL \"max\" \"uni-jena.de\")) NIL NIL ((NIL NIL \"erika\" \"uni-jena.de\")) NIL NIL NIL \"<id>\")");
+                response.append(" RFC822.SIZE ").append(message.size());
+                if (items.contains("BODYSTRUCTURE")) {
+                    response.append(" BODYSTRUCTURE ").append(message.bodyStructure());
+                }
+                send(out, response.append(")").toString());
+            }
+            if (unsolicited != null) {
+                send(out, unsolicited);
+            }
+            if (fetchCompletion != null) {
+                try {
+                    fetchCompletion.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        void send(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
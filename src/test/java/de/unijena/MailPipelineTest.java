@@ -0,0 +1,87 @@
+package de.unijena;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the decoding stages of the mail pipeline, with the encoded bytes split at every possible offset
+ */
+class MailPipelineTest {
+
+    /**
+     * A text with two and four byte UTF-8 chars, so that splits fall into the middle of chars
+     */
+    private static final String TEXT = "Gr\u00fc\u00dfe aus Jena \u20ac \uD83D\uDE00\r\nzweite Zeile\r\n";
+
+    @Test
+    void decodesPlainBytesSplitInsideAChar() throws IOException {
+        assertDecodedAtEverySplit(TEXT.getBytes(StandardCharsets.UTF_8), "8BIT", "UTF-8", false, TEXT);
+    }
+
+    @Test
+    void decodesBase64SplitInsideAGroup() throws IOException {
+        byte[] encoded = Base64.getMimeEncoder(8, "\r\n".getBytes(StandardCharsets.ISO_8859_1)).encode(TEXT.getBytes(StandardCharsets.UTF_8));
+        assertDecodedAtEverySplit(encoded, "base64", "utf-8", false, TEXT);
+    }
+
+    @Test
+    void decodesQuotedPrintableSplitInsideEscapesAndSoftBreaks() throws IOException {
+        String encoded = "M=FCller, eine lange =\r\nZeile mit =3D und =\nohne CR, =XY bleibt\r\n";
+        assertDecodedAtEverySplit(encoded.getBytes(StandardCharsets.ISO_8859_1), "QUOTED-PRINTABLE", "ISO-8859-1", false,
+                "M\u00fcller, eine lange Zeile mit = und ohne CR, =XY bleibt\r\n");
+    }
+
+    @Test
+    void decodesQuotedPrintableMultiByteChars() throws IOException {
+        assertDecodedAtEverySplit("Gr=C3=BC=C3=9Fe =E2=82=AC".getBytes(StandardCharsets.ISO_8859_1), "quoted-printable", "UTF-8", false, "Gr\u00fc\u00dfe \u20ac");
+    }
+
+    @Test
+    void convertsHtmlSplitInsideTagsEntitiesAndComments() throws IOException {
+        String html = "<html><head><title>T</title><style>p { color: red; }</style></head><body>"
+                + "<p>Hallo &amp; <b title=\"a > b\">Welt</b></p><!-- <p>versteckt</p> -- > noch versteckt -->"
+                + "<script>var x = '<p>';</script><ul><li>eins</li><li>zwei&nbsp;drei</li></ul>&#252;&#x263A; &unknown; a &lt b<br>Ende</body></html>";
+        assertDecodedAtEverySplit(html.getBytes(StandardCharsets.UTF_8), "7BIT", "UTF-8", true,
+                "T\n\nHallo & Welt\n\n- eins\n- zwei drei\n\n\u00fc\u263a &unknown; a &lt b\nEnde");
+    }
+
+    @Test
+    void fallsBackToLatin1ForAnUnsupportedCharset() throws IOException {
+        StringWriter text = new StringWriter();
+        try (OutputStream body = MailPipeline.body(text, "8BIT", "x-unknown", false)) {
+            body.write(new byte[]{'M', (byte) 0xFC, 'l'});
+        }
+        assertEquals("Unsupported encoding: x-unknown\nM\u00fcl", text.toString());
+    }
+
+    /**
+     * Writes the bytes in two pieces, split at every offset with a flush in between, and byte by byte,
+     * and checks that every way of writing gives the same text
+     */
+    private static void assertDecodedAtEverySplit(byte[] encoded, String encoding, String charset, boolean html, String expected) throws IOException {
+        for (int split = 0; split <= encoded.length; split++) {
+            StringWriter text = new StringWriter();
+            try (OutputStream body = MailPipeline.body(text, encoding, charset, html)) {
+                body.write(encoded, 0, split);
+                body.flush(); // must not decode incomplete groups, escapes or chars
+                body.write(encoded, split, encoded.length - split);
+            }
+            assertEquals(expected, text.toString(), "split at " + split);
+        }
+
+        StringWriter text = new StringWriter();
+        try (OutputStream body = MailPipeline.body(text, encoding, charset, html)) {
+            for (byte b : encoded) {
+                body.write(b);
+            }
+        }
+        assertEquals(expected, text.toString(), "written byte by byte");
+    }
+}
@@ -0,0 +1,359 @@
+package de.unijena;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the POP3 client against an in-process stand-in server, without any external network
+ */
+@Timeout(10)
+class SocketClientReadV1Test {
+
+    FakeServer server;
+    StringWriter output = new StringWriter();
+    SocketClientReadV1.Client client;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        server.close();
+    }
+
+    /**
+     * Starts the server with the given messages and connects a client with the given budget
+     */
+    void connect(long budget, FakeMessage... messages) throws IOException {
+        server = new FakeServer();
+        server.messages.addAll(List.of(messages));
+        server.start();
+
+        client = new SocketClientReadV1.Client(budget, new PrintWriter(output, true));
+        client.connect("127.0.0.1", server.port(), false);
+        client.authenticate("max.mustermann", "password");
+    }
+
+    @Test
+    void keepsBodyLinesThatAreOnlyADot() throws IOException {
+        connect(-1, new FakeMessage("Subject: Punkte\r\n\r\nline1\r\n.\r\n..\r\nafter-dot\r\n"));
+
+        client.printAllMails();
+        client.printMail(1, false);
+
+        String message = output.toString();
+        assertTrue(message.contains("line1\r\n.\r\n..\r\nafter-dot\r\n"), message);
+        assertEquals(1, client.getMailAmount(), "the whole message must have been read before the next command");
+    }
+
+    @Test
+    void printsHeadersThatAreFoldedOrFollowTheContentType() throws IOException {
+        connect(-1, new FakeMessage("Content-Type: text/plain;\r\n\tcharset=\"iso-8859-1\"\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "Date: Wed, 21 Oct 2015 12:34:56 +0200 (CEST)\r\n"
+                + "Subject:\r\n =?utf-8?q?Gr=C3=BC=C3=9Fe?=\r\n"
+                + "From: Max Mustermann\r\n <max@uni-jena.de>\r\n"
+                + "To: erika@uni-jena.de\r\n"
+                + "\r\n"
+                + "Sch=F6ne Gr=FC=DFe\r\n"));
+
+        client.printAllMails();
+        client.printMail(1, false);
+
+        String message = output.toString();
+        assertTrue(message.contains("Date: Wed, 21 Oct 2015 12:34:56"), message);
+        assertFalse(message.contains("+0200"), message);
+        assertTrue(message.contains("Sender: max@uni-jena.de"), message);
+        assertTrue(message.contains("Receiver: erika@uni-jena.de"), message);
+        assertTrue(message.contains("Subject: Gr\u00fc\u00dfe"), message);
+        assertTrue(message.indexOf("Subject: Gr\u00fc\u00dfe") < message.indexOf("== Body =="), "the headers must be printed before the body");
+        assertTrue(message.contains("Sch\u00f6ne Gr\u00fc\u00dfe"), message);
+    }
+
+    @Test
+    void printsTheTextOfANestedAlternativeAndNamesTheAttachments() throws IOException {
+        String plain = base64("Gr\u00fc\u00dfe aus Jena\r\n.punkt am Anfang\r\n");
+        connect(-1, new FakeMessage("Subject: Anhang\r\n"
+                + "Content-Type: multipart/mixed;\r\n boundary=\"outer\"\r\n"
+                + "\r\n"
+                + "This is a multi-part message in MIME format.\r\n"
+                + "--outer\r\n"
+                + "Content-Type: multipart/alternative; boundary=inner\r\n"
+                + "\r\n"
+                + "--inner\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "\r\n"
+                + plain
+                + "--inner\r\n"
+                + "Content-Type: text/html; charset=utf-8\r\n"
+                + "\r\n"
+                + "<p>only the plain text is shown</p>\r\n"
+                + "--inner--\r\n"
+                + "--outer\r\n"
+                + "Content-Type: text/plain; charset=iso-8859-1\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "\r\n"
+                + "Zweiter Teil: M=FCller\r\n"
+                + ".\r\n"
+                + "--outer\r\n"
+                + "Content-Type: image/png; name=bild.png\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "\r\n"
+                + "iVBORw0KGgo=\r\n"
+                + "--outer--\r\n"
+                + "epilogue\r\n"));
+
+        client.printAllMails();
+        client.printMail(1, false);
+
+        String message = output.toString();
+        assertTrue(message.contains("Gr\u00fc\u00dfe aus Jena\r\n.punkt am Anfang"), message);
+        assertFalse(message.contains("only the plain text is shown"), message);
+        assertTrue(message.contains("Zweiter Teil: M\u00fcller\r\n.\r\n"), message);
+        assertTrue(message.contains("[image/png: bild.png]"), message);
+        assertFalse(message.contains("iVBOR") || message.contains("epilogue") || message.contains("MIME format"), message);
+        assertEquals(1, client.getMailAmount(), "the whole message must have been read before the next command");
+    }
+
+    @Test
+    void previewsMessagesOverTheThresholdWithTop() throws IOException {
+        connect(-1, small("eins"), large(5 * 1024 * 1024));
+
+        client.printAllMails();
+        assertTrue(output.toString().contains("[2] (5.0 MB) Date: Wed, 21 Oct 2015 12:34:56, Subject: gross"), output.toString());
+        assertTrue(server.commands().containsAll(List.of("LIST", "TOP 1 0", "TOP 2 0")), server.commands().toString());
+        assertFalse(server.commands().stream().anyMatch(command -> command.startsWith("RETR")), "the listing must only load the headers");
+
+        client.printMail(2, false);
+
+        String message = output.toString();
+        assertTrue(message.contains("line 49\r\n"), message);
+        assertFalse(message.contains("line 50\r\n"), "only the preview lines must be downloaded");
+        assertTrue(message.contains("enter 'full 2' to download the whole message (5.0 MB)"), message);
+        assertTrue(server.commands().contains("TOP 2 50"), server.commands().toString());
+        assertFalse(server.commands().contains("RETR 2"), server.commands().toString());
+    }
+
+    @Test
+    void downloadsTheWholeMessageOnRequest() throws IOException {
+        connect(-1, small("eins"), large(5 * 1024 * 1024));
+
+        client.printAllMails();
+        client.printMail(1, false);
+        client.printMail(2, true);
+
+        String message = output.toString();
+        assertTrue(message.contains("hallo"), message);
+        assertTrue(message.contains("line 199\r\n"), message);
+        assertFalse(message.contains("[Preview"), message);
+        assertTrue(server.commands().containsAll(List.of("RETR 1", "RETR 2")), server.commands().toString());
+    }
+
+    @Test
+    void previewsMessagesThatExceedTheBudgetEvenOnRequest() throws IOException {
+        connect(4 * 1024, small("eins"), large(10 * 1024));
+
+        client.printAllMails();
+        client.printMail(2, true);
+
+        String message = output.toString();
+        assertTrue(message.contains("Downloading 10.0 KB would exceed the remaining budget"), message);
+        assertTrue(message.contains("line 49\r\n"), message);
+        assertTrue(message.contains("the whole message (10.0 KB) exceeds the download budget"), message);
+        assertFalse(server.commands().contains("RETR 2"), server.commands().toString());
+    }
+
+    @Test
+    void neverDownloadsLargeMessagesToPreviewThemWithoutTop() throws IOException {
+        connect(-1, small("eins"), large(5 * 1024 * 1024));
+        server.topSupported = false;
+
+        client.printAllMails();
+        assertTrue(output.toString().contains("[1] (" + SocketClientReadV1.formatSize(small("eins").listedSize()) + ") Date: Wed, 21 Oct 2015 12:34:56, Subject: eins"), output.toString());
+        assertTrue(output.toString().contains("[2] (5.0 MB) Headers not loaded"), output.toString());
+        assertTrue(server.commands().contains("RETR 1"), server.commands().toString());
+
+        client.printMail(2, false);
+        assertTrue(output.toString().contains("The server does not support previews and the message is larger than 1.0 MB, enter 'full 2'"), output.toString());
+        assertFalse(server.commands().contains("RETR 2"), "neither the listing nor the preview may download the large message");
+        assertEquals(1, server.commands().stream().filter(command -> command.startsWith("TOP")).count(), "TOP must only be tried once");
+
+        client.printMail(2, true);
+        assertTrue(output.toString().contains("line 199\r\n"), output.toString());
+        assertTrue(server.commands().contains("RETR 2"), server.commands().toString());
+    }
+
+    @Test
+    void refusesMessagesOverTheBudgetWithoutTop() throws IOException {
+        connect(4 * 1024, small("eins"), large(10 * 1024));
+        server.topSupported = false;
+
+        client.printAllMails();
+        client.printMail(2, true);
+
+        assertTrue(output.toString().contains("would exceed the remaining budget of"), output.toString());
+        assertTrue(output.toString().contains("the message is not downloaded"), output.toString());
+        assertFalse(server.commands().contains("RETR 2"), server.commands().toString());
+    }
+
+    @Test
+    void stopsLoadingHeadersWhenTheBudgetIsUsedUp() throws IOException {
+        connect(100, small("eins"), small("zwei"), small("drei"));
+
+        client.printAllMails();
+
+        String listing = output.toString();
+        assertTrue(listing.contains("Subject: eins"), listing);
+        assertTrue(listing.contains("the headers of the messages 2 to 3 are not loaded"), listing);
+        assertFalse(server.commands().contains("TOP 2 0"), server.commands().toString());
+    }
+
+    /**
+     * A small message with the given subject
+     */
+    private static FakeMessage small(String subject) {
+        return new FakeMessage("Date: Wed, 21 Oct 2015 12:34:56 +0200\r\nSubject: " + subject + "\r\n\r\nhallo\r\n");
+    }
+
+    /**
+     * A message with 200 body lines that LIST reports with the given size
+     */
+    private static FakeMessage large(long size) {
+        StringBuilder text = new StringBuilder("Date: Wed, 21 Oct 2015 12:34:56 +0200\r\nSubject: gross\r\n\r\n");
+        for (int i = 0; i < 200; i++) {
+            text.append("line ").append(i).append("\r\n");
+        }
+        return new FakeMessage(text.toString(), size);
+    }
+
+    /**
+     * Encodes a text as UTF-8 and base64 in short lines, like mail clients do
+     */
+    private static String base64(String text) {
+        return Base64.getMimeEncoder(16, "\r\n".getBytes(StandardCharsets.ISO_8859_1)).encodeToString(text.getBytes(StandardCharsets.UTF_8)) + "\r\n";
+    }
+
+    /**
+     * A message of the fake server
+     * @param text The message with CRLF line endings, not dot-stuffed
+     * @param size The size that LIST reports, -1 for the real size
+     */
+    private record FakeMessage(String text, long size) {
+        FakeMessage(String text) {
+            this(text, -1);
+        }
+
+        long listedSize() {
+            return size == -1 ? text.getBytes(StandardCharsets.ISO_8859_1).length : size;
+        }
+    }
+
+    /**
+     * A minimal POP3 server that answers the commands of the client for one connection
+     */
+    private static class FakeServer implements Closeable {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final List<FakeMessage> messages = new CopyOnWriteArrayList<>();
+        final List<String> commands = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean topSupported = true;
+        Thread thread;
+
+        FakeServer() throws IOException {}
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        List<String> commands() {
+            synchronized (commands) {
+                return new ArrayList<>(commands);
+            }
+        }
+
+        void start() {
+            thread = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    serve(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)), socket.getOutputStream());
+                } catch (IOException ignored) {} // the client closed the connection
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void serve(BufferedReader in, OutputStream out) throws IOException {
+            send(out, "+OK fake server ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                commands.add(line);
+                String[] parts = line.split(" ");
+                switch (parts[0]) {
+                    case "USER", "PASS" -> send(out, "+OK");
+                    case "STAT" -> send(out, "+OK " + messages.size() + " " + messages.stream().mapToLong(FakeMessage::listedSize).sum());
+                    case "LIST" -> {
+                        send(out, "+OK " + messages.size() + " messages");
+                        for (int i = 0; i < messages.size(); i++) {
+                            send(out, (i + 1) + " " + messages.get(i).listedSize());
+                        }
+                        send(out, ".");
+                    }
+                    case "TOP" -> {
+                        if (!topSupported) {
+                            send(out, "-ERR unknown command");
+                            continue;
+                        }
+                        send(out, "+OK");
+                        String text = messages.get(Integer.parseInt(parts[1]) - 1).text();
+                        int bodyStart = text.indexOf("\r\n\r\n") + 4;
+                        sendLines(out, text.substring(0, bodyStart), Integer.MAX_VALUE);
+                        sendLines(out, text.substring(bodyStart), Integer.parseInt(parts[2]));
+                        send(out, ".");
+                    }
+                    case "RETR" -> {
+                        send(out, "+OK message follows");
+                        sendLines(out, messages.get(Integer.parseInt(parts[1]) - 1).text(), Integer.MAX_VALUE);
+                        send(out, ".");
+                    }
+                    case "QUIT" -> {
+                        send(out, "+OK bye");
+                        return;
+                    }
+                    default -> send(out, "-ERR unknown command");
+                }
+            }
+        }
+
+        /**
+         * Sends the first lines of a text, dot-stuffing lines that start with "." (see RFC 1939)
+         */
+        void sendLines(OutputStream out, String text, int limit) throws IOException {
+            String[] lines = text.substring(0, text.length() - 2).split("\r\n", -1); // the text ends with CRLF, empty lines are kept
+            for (int i = 0; i < lines.length && i < limit; i++) {
+                send(out, lines[i].startsWith(".") ? "." + lines[i] : lines[i]);
+            }
+        }
+
+        void send(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}